@@ -16,6 +16,9 @@ import java.io.PrintWriter;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
@@ -23,6 +26,7 @@ import java.util.concurrent.Callable;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import cad.ai.game.*;
+import cad.ai.server.BinaryProtocol;
 
 /***********************************************************
  * The GameClient is the front-end text-based interface to the
@@ -35,12 +39,14 @@ public class GameClient {
     private String pname;      // The name of the player
     private int pid;           // The player's id in the game
     private int tid;           // The tournament's id (generally not useful if only one Tour running)
-    private ExecutorService executor;    // Used to create new threads
+    private ExecutorService executor;    // Runs the connection (its only task)
     private Connection conn = null;
     private Game game = null;
     private AI ai = null;
     private int aiLevel = 0;
     private boolean done = false;
+    private boolean binary = false;  // Ask the server for the binary protocol
+    private boolean deltas = false;  // Ask the server for moves (@GAME:DELTA) rather than states
     
     /**
      * Constructor
@@ -65,7 +71,7 @@ public class GameClient {
 	this.tid = tid;
 	this.aiLevel = aiLevel;
 	userIn = new BufferedReader(new InputStreamReader(System.in));
-	executor = Executors.newCachedThreadPool();
+	executor = Executors.newSingleThreadExecutor();
 	game = null;
 	done = false;
 	if (aiFlag) createAI(); else this.ai = null;
@@ -93,6 +99,15 @@ public class GameClient {
 	    game.updateState(state);   // Inform the game of the new game state
     }
 
+    /**
+     * Apply the move of player p to the game state (see DeltaGame).
+     * Returns false if it could not be applied - the state must be sent again.
+     **/
+    public synchronized boolean applyDelta(int p, String move) {
+	if (!(game instanceof DeltaGame)) return false;
+	return ((DeltaGame) game).applyDelta(p, move);
+    }
+
     /**
      * Create a new game to play.
      * p - 0 if player is home and 1 if player is away.
@@ -116,6 +131,17 @@ public class GameClient {
     }
 
     public synchronized void setDone(boolean flag) { done = flag; }
+
+    /**
+     * Request the (compact) binary protocol when connecting.
+     * Servers that don't support it just keep using text.
+     **/
+    public void setBinary(boolean flag) { binary = flag; }
+
+    /**
+     * Follow games by the moves made (deltas) instead of the whole state after every move.
+     **/
+    public void setDeltas(boolean flag) { deltas = flag; }
     
     /**
      * Start running the thread for this connection
@@ -151,24 +177,63 @@ public class GameClient {
 	private Socket sock = null;
 	private PrintWriter out = null;
 	private BufferedReader in = null;
+	private BufferedInputStream frames = null;  // FROM the server (binary protocol)
+	private OutputStream rawOut = null;         // TO the server (binary protocol)
 	private Deque<String> messages = null;
 	
 	public Connection() throws UnknownHostException, IOException {
 	    this.sock = new Socket(hostname, port);
 	    this.out = new PrintWriter(sock.getOutputStream(), true);
-	    this.in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
 	    this.messages = new ArrayDeque<String>();
+	    if (binary) negotiateBinary();
+	    if (in == null && frames == null)
+		this.in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
 	    initialHandshake();
 	}
+
+	/**
+	 * Ask the server for the binary protocol and wait for its answer.
+	 * Until then everything is text (read byte by byte, so nothing after
+	 * the answer is consumed).  On success frames replaces in.
+	 **/
+	private void negotiateBinary() throws IOException {
+	    BufferedInputStream stream = new BufferedInputStream(sock.getInputStream());
+	    out.println(BinaryProtocol.HANDSHAKE);
+	    ByteArrayOutputStream line = new ByteArrayOutputStream();
+	    int b;
+	    while ((b = stream.read()) >= 0 && b != '\n') line.write(b);
+	    String response = line.toString("UTF-8").trim();
+	    if (response.equals(BinaryProtocol.HANDSHAKE)) {
+		frames = stream;
+		rawOut = sock.getOutputStream();
+		debug("Using the binary protocol.");
+	    } else {
+		// Declined (or not understood by an older server): stay with text
+		in = new BufferedReader(new InputStreamReader(stream));
+		debug("Server declined the binary protocol (" + response + ").  Using text.");
+	    }
+	}
 	
 	/***
 	 * The initial connection to the game server based on the parameters specified
 	 * at creation time.
 	 ***/
 	private void initialHandshake() {
+	    if (frames != null) {
+		// Binary: the same commands, but framed (and sent by the Connection thread)
+		if (deltas) postMessageLn("@PROTOCOL:DELTA");
+		if (pid == -1) postMessageLn("@NEW PLAYER");
+		else postMessageLn("@PLAYER:" + pid);
+		postMessageLn("@NAME:" + pname);
+		postMessageLn(tid < 0 ? "@TOUR:JOIN" : "@TOUR:JOIN:" + tid);
+		return;
+	    }
 	    try {
 		String response = null;  // The response to a query
 		String pieces[] = null;  // The response in pieces
+		// Follow games by their moves
+		if (deltas) out.println("@PROTOCOL:DELTA");
+
 		// Create player
 		if (pid == -1) {
 		    out.println("@NEW PLAYER");    // New player
@@ -191,7 +256,7 @@ public class GameClient {
 	}
 
 	public Integer call() {
-	    while (in != null && out != null) {
+	    while ((in != null || frames != null) && out != null) {
 		try {
 		    checkActive();
 		    processInput();
@@ -259,6 +324,16 @@ public class GameClient {
 	private synchronized void transmitMessages() throws IOException {
 	    if (out == null) return;  // No output buffer available
 	    
+	    if (rawOut != null) {
+		// Binary protocol: each message is one frame (without the new line)
+		while (!messages.isEmpty()) {
+		    String m = messages.removeFirst();
+		    if (m.endsWith("\n")) m = m.substring(0, m.length() - 1);
+		    rawOut.write(BinaryProtocol.encode(m));
+		}
+		rawOut.flush();
+		return;
+	    }
 	    while (!messages.isEmpty()) {
 		String m = messages.removeFirst();
 		out.print(m);
@@ -270,13 +345,15 @@ public class GameClient {
 	 * Get and process the input on the input stream
 	 **/
 	private void processInput() throws IOException {
-	    if (in == null || !in.ready()) return;  // No input ready to process
+	    if (frames != null) {
+		if (frames.available() == 0) return;  // No frame ready to process
+	    } else if (in == null || !in.ready()) return;  // No input ready to process
 	    
 	    // We'll process only ONE action per frame - the rest are just QUEUED
 	    // Of course, we could take all requests or just a few requests.
 	    // This is to prevent some BOT from generating LOTS of action requests.
 	    long time = System.currentTimeMillis();
-	    String message = in.readLine();
+	    String message = (frames != null) ? BinaryProtocol.read(frames) : in.readLine();
 	    lastReceived = time;  // For keeping connection alive...
 	    
 	    if (message == null) {
@@ -306,6 +383,8 @@ public class GameClient {
 		case "@NAME": break; // Ignoring - for now...
 		case "@PING": postMessageLn("@PONG"); break;
 		case "@PONG": break;  // Ignore (already registered message received)
+		case "@PROTOCOL": debug("Server protocol: " + message); break;
+		case "@REDIRECT": processRedirect(pieces); break;
 		default: error("Unrecognized command from server. " + message);
 		}
 	    } catch (Exception e) {
@@ -313,6 +392,27 @@ public class GameClient {
 	    }
 	}
 
+	/**
+	 * The server (a coordinator) sent us to another one (HOST:PORT):
+	 * connect there instead and do the handshake again.
+	 **/
+	synchronized private void processRedirect(String[] pieces) {
+	    if (pieces.length < 3) {
+		debug("REDIRECT was transmitted without a HOST:PORT.");
+		return;
+	    }
+	    disconnect();
+	    hostname = pieces[1];
+	    port = Integer.parseInt(pieces[2]);
+	    display("Redirected to " + hostname + ":" + port + ".");
+	    try {
+		startConnection();  // Runs once this connection's thread is done with it
+	    } catch (IOException e) {
+		error("I/O Exception: Could not connect to " + hostname + ":" + port + ".  " + e.getMessage());
+		setDone(true);
+	    }
+	}
+
 	synchronized private void processReport(String[] pieces) {
 	    debug("Reports should not be sent to regular players.  Not sure why it was transmitted. Ignoring...");
 	}
@@ -391,6 +491,8 @@ public class GameClient {
 	    switch(command) {
 	    case "START": processGameStart(pieces); break;
 	    case "STATE": processGameState(pieces); break;
+	    case "SYNC": processGameSync(pieces); break;
+	    case "DELTA": processGameDelta(pieces); break;
 	    case "ERROR": processGameErrorMessage(pieces); break;
 	    case "MESSAGE": processGameMessage(pieces); break;
 	    case "RESULT": processGameResult(pieces); break;
@@ -419,6 +521,37 @@ public class GameClient {
 		updateGame(pieces[2]);
 	}
 	
+	/**
+	 * The full state numbered by the moves made so far (when following deltas).
+	 **/
+	private int seq = 0;  // Number of the last state (or delta) applied
+	synchronized private void processGameSync(String[] pieces) {
+	    if (pieces.length < 4) {
+		debug("Game Sync message was incorrectly transmitted!");
+		return;
+	    }
+	    seq = Integer.parseInt(pieces[2]);
+	    updateGame(pieces[3]);
+	}
+
+	/**
+	 * A move was made (DELTA:SEQ:PLAYER:MOVE): apply it if it is the next one,
+	 * otherwise our state is out of date and we ask for the full state.
+	 **/
+	synchronized private void processGameDelta(String[] pieces) {
+	    if (pieces.length < 5) {
+		debug("Game Delta message was incorrectly transmitted!");
+		return;
+	    }
+	    int next = Integer.parseInt(pieces[2]);
+	    if (next == seq + 1 && applyDelta(Integer.parseInt(pieces[3]), pieces[4])) {
+		seq = next;
+	    } else {
+		debug("Game state out of sync (delta " + next + " after " + seq + ").  Asking for it again.");
+		postMessageLn("@GAME:RESYNC");
+	    }
+	}
+
 	synchronized private void processGameErrorMessage(String[] pieces) {
 	    if (pieces.length < 3) {
 		debug("Game Error Message was incorrectly transmitted by server.");
@@ -447,15 +580,21 @@ public class GameClient {
 	
         // Close the connection (can also be used to stop the thread)
 	public synchronized void close() {
+	    disconnect();
+	    setDone(true);  // Connection done, nothing left to do...
+	}
+
+	// Close the connection (without ending the client)
+	private synchronized void disconnect() {
 	    try {
 		if (in != null) in.close();
+		if (frames != null) frames.close();
 		if (out != null) out.close();
 		if (sock != null) sock.close();
 	    } catch (IOException e) {
 		error("Error trying to close client connection: " + e.getMessage());
 	    } finally {
-		in = null; out = null; sock = null;
-		setDone(true);  // Connection done, nothing left to do...
+		in = null; frames = null; rawOut = null; out = null; sock = null;
 	    }
 	}
 
@@ -490,6 +629,8 @@ public class GameClient {
 	int tid = -1;
 	boolean ai = true;
 	int aiLevel = 1;
+	boolean binary = false;
+	boolean deltas = false;
 	
 	// Parse the arguments
 	for (String arg: args) {
@@ -510,6 +651,8 @@ public class GameClient {
 		    else printUsage("AI setting must be true or false");
 		    break;
 		case "--level": aiLevel = Integer.parseInt(params[1]); break;
+		case "--binary": binary = true; break;
+		case "--delta": deltas = true; break;
 		default:
 		    printUsage("Unrecognized parameter: " + arg);
 		}
@@ -520,6 +663,8 @@ public class GameClient {
 
 	GameClient c = new GameClient(hostname, port, name, pid, tid,
 				      ai, aiLevel);
+	c.setBinary(binary);
+	c.setDeltas(deltas);
 	c.run();
     }
 
@@ -538,6 +683,8 @@ public class GameClient {
 	System.err.println("         --ai=true/false [default=true]");
 	System.err.println("         [+/-]ai  -- Use or don't use AI");
 	System.err.println("         --level=X   The level of AI to use 0, 1, ...  (0=NimAi, 1=TTTAI) [default=1]");
+	System.err.println("         --binary    Use the compact binary protocol (if the server supports it)");
+	System.err.println("         --delta     Receive the moves made rather than the whole game state");
 	if (message != null) System.err.println("       " + message);
 	System.exit(1);
     }       
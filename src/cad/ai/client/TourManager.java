@@ -21,6 +21,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Callable;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
 
@@ -57,6 +58,8 @@ public class TourManager {
 	private void addLoss() { loss++; }
 	private void addTie() { tie++; score += 1;}
 	public synchronized void reset() { win = loss = tie = score = 0; }
+	// Take the tallies from the server's standings (no need to count the matches here)
+	public synchronized void set(int s, int w, int l, int t) { score = s; win = w; loss = l; tie = t; }
 	public synchronized void setName(String n) { name = n; }
 	public String toString() {
 	    String result = "" + id;
@@ -76,9 +79,11 @@ public class TourManager {
     private String pname;      // The name of the player
     private int pid;           // The player's id on the Server
     private int tid;           // The tournament's id (generally not useful if only one Tour running)
-    private ExecutorService executor;    // Used to create new threads
+    private ExecutorService executor;    // Runs the connection (its only task)
     private Connection conn = null;
     HashMap<Integer, Record> record; // The record associated with each player
+    private int results = 0;         // Match results pushed by the server (see @TOUR:RESULTS)
+    private String routed = null;    // The last command a coordinator may redirect (see @REDIRECT)
     private boolean done = false;
     
     /**
@@ -99,7 +104,7 @@ public class TourManager {
 	this.pid = pid;
 	this.record = new HashMap<Integer, Record>();
 	userIn = new BufferedReader(new InputStreamReader(System.in));
-	executor = Executors.newCachedThreadPool();
+	executor = Executors.newSingleThreadExecutor();
 	done = false;
     }
     
@@ -163,8 +168,9 @@ public class TourManager {
 		case 2: conn.postMessageLn("@TOUR:START"); break;
 		case 3: conn.postMessageLn("@TOUR:PAUSE"); break;
 		case 4: conn.postMessageLn("@TOUR:END"); break;
-		case 5: conn.postMessageLn("@TOUR:REPORT"); break;
+		case 5: conn.postMessageLn("@TOUR:STANDINGS"); break;
 		case 6: System.out.println("Good-bye?"); System.exit(0); break;
+		case 7: printStandings(); break;
 		default: System.err.println("Unrecognized option.");
 		}
 	    } catch (NumberFormatException e) {
@@ -182,7 +188,12 @@ public class TourManager {
     private void processCreateTour() throws IOException {
 	System.out.println("Please enter name of game for the tournament.");
 	String game = userIn.readLine();
-	conn.postMessageLn("@TOUR:CREATE:"+game);
+	System.out.println("Please enter the format (RR, SWISS or KNOCKOUT) - or nothing for RR.");
+	String format = userIn.readLine();
+	if (format == null || format.trim().isEmpty())
+	    conn.postMessageLn("@TOUR:CREATE:"+game);
+	else
+	    conn.postMessageLn("@TOUR:CREATE:"+game+":"+format.trim());
     }
 
     
@@ -195,8 +206,9 @@ public class TourManager {
 	System.out.println("2. Start tournament.");
 	System.out.println("3. Pause tournament.");
 	System.out.println("4. End tournament.");
-	System.out.println("5. Print report of tournament status.");
+	System.out.println("5. Print standings of the tournament.");
 	System.out.println("6. Quit.");
+	System.out.println("7. Print live standings (pushed by the server as matches finish).");
     }
 
     /**
@@ -225,6 +237,17 @@ public class TourManager {
     synchronized private void printRecords() {
 	for (Record r: record.values()) System.out.println(r);
     }
+
+    /**
+     * Print out the records from best to worst (by score then wins)
+     **/
+    synchronized private void printStandings() {
+	ArrayList<Record> sorted = new ArrayList<Record>(record.values());
+	sorted.sort((a, b) -> (a.score != b.score) ? b.score - a.score : b.win - a.win);
+	int rank = 0;
+	for (Record r: sorted) System.out.println(++rank + ". " + r);
+	System.out.println(results + " results received.");
+    }
     
     private class Connection implements Callable<Integer> {
 	private Socket sock = null;
@@ -323,6 +346,8 @@ public class TourManager {
 	 * This also appends a new line to end of message.
 	 **/
 	public synchronized void postMessageLn(String message) {
+	    if (message.startsWith("@TOUR:CREATE") || message.startsWith("@TOUR:JOIN"))
+		routed = message;  // Repeated if we are redirected
 	    messages.addLast(message + "\n");   // Store the message in the messages Queue.
 	}
 	
@@ -330,6 +355,7 @@ public class TourManager {
 	 * Transmit (all) messages in the Queue.
 	 **/
 	private synchronized void transmitMessages() throws IOException {
+	    if (out == null) return;  // Closed (e.g. redirected)
 	    while (!messages.isEmpty()) {
 		String m = messages.removeFirst();
 		out.print(m);
@@ -372,10 +398,13 @@ public class TourManager {
 		case "@PID": processPID(pieces); break;
 		case "@TID": processTID(pieces); break;
 		case "@REPORT": processReport(pieces); break;
+		case "@STANDINGS": processStandings(pieces); break;
+		case "@TOUR": processTourCommands(pieces); break;
 		case "@NAME": processName(pieces); break;
 		case "@GAME": processGameCommands(pieces); break;
 		case "@PING": postMessageLn("@PONG"); break;
 		case "@PONG": break;  // Ignore (already registered message received)
+		case "@REDIRECT": processRedirect(pieces); break;
 		default: error("Unrecognized command from server. " + message);
 		}
 	    } catch (Exception e) {
@@ -429,6 +458,56 @@ public class TourManager {
 	    }
 	}
 
+	synchronized private void processTourCommands(String[] pieces) {
+	    if (pieces.length < 2) {
+		debug("No tour subcommand submitted...");
+		return;
+	    }
+	    switch (pieces[1]) {
+	    case "RESULTS": processResults(pieces); break;
+	    case "END": display("The tournament has ended."); break;
+	    default: debug("Unrecognized tour command transmitted: " + pieces[1]);
+	    }
+	}
+
+	/**
+	 * Results pushed by the server (RESULTS:HID/AID/R,...:ID/SCORE/W/L/T,...)
+	 * The new tallies are simply stored - the live standings are always up to date.
+	 **/
+	synchronized private void processResults(String[] pieces) {
+	    if (pieces.length > 2 && !pieces[2].isEmpty())
+		results += pieces[2].split(",").length;
+	    if (pieces.length < 4 || pieces[3].isEmpty()) return;
+	    for (String s: pieces[3].split(",")) {
+		String[] val = s.split("/");
+		getRecord(Integer.valueOf(val[0])).set(Integer.parseInt(val[1]), Integer.parseInt(val[2]),
+						       Integer.parseInt(val[3]), Integer.parseInt(val[4]));
+	    }
+	}
+
+	/**
+	 * Display a page of the standings (PAGE:PAGES:RANK/ID/SCORE/W/L/T,...)
+	 * The server keeps the tallies so only this page is looked at.
+	 **/
+	synchronized private void processStandings(String[] pieces) {
+	    if (pieces.length < 3) {
+		debug("Standings were transmitted without accompanying data.");
+		return;
+	    }
+	    if (pieces.length > 3 && !pieces[3].isEmpty()) {
+		for (String s: pieces[3].split(",")) {
+		    String[] val = s.split("/");
+		    Record r = getRecord(Integer.valueOf(val[1]));
+		    r.set(Integer.parseInt(val[2]), Integer.parseInt(val[3]),
+			  Integer.parseInt(val[4]), Integer.parseInt(val[5]));
+		    System.out.println(val[0] + ". " + r);
+		}
+	    }
+	    if (!pieces[1].equals(pieces[2]))
+		System.out.println("Page " + pieces[1] + " of " + pieces[2] +
+				   " (use the command @TOUR:STANDINGS:PAGE for the others).");
+	}
+
 	synchronized private void processPID(String[] pieces) {
 	    if (pieces.length < 2) {
 		debug("PID was transmitted without a valid ID.");
@@ -443,6 +522,29 @@ public class TourManager {
 	    }
 	}
 
+	/**
+	 * The server (a coordinator) sent us to another one (HOST:PORT):
+	 * connect there instead, do the handshake again and repeat the
+	 * command that was redirected (if it was not the handshake).
+	 **/
+	synchronized private void processRedirect(String[] pieces) {
+	    if (pieces.length < 3) {
+		debug("REDIRECT was transmitted without a HOST:PORT.");
+		return;
+	    }
+	    disconnect();
+	    hostname = pieces[1];
+	    port = Integer.parseInt(pieces[2]);
+	    display("Redirected to " + hostname + ":" + port + ".");
+	    try {
+		startConnection();  // Runs once this connection's thread is done with it
+		if (routed != null) conn.postMessageLn(routed);
+	    } catch (IOException e) {
+		error("I/O Exception: Could not connect to " + hostname + ":" + port + ".  " + e.getMessage());
+		setDone(true);
+	    }
+	}
+
 	synchronized private void processTID(String[] pieces) {
 	    if (pieces.length < 2) {
 		debug("TID was transmitted without a valid ID.");
@@ -451,6 +553,7 @@ public class TourManager {
 		    tid = Integer.parseInt(pieces[1]);
 		    System.out.println("Tournament registered with ID=" + tid +
 				       ".  This is not needed unless the server has more than one tournament running.");
+		    postMessageLn("@TOUR:SUBSCRIBE");  // Keep the live standings
 		} catch (Exception e) {
 		    debug("TID was not properly transmitted as an integer: " + pieces[1]);
 		}
@@ -480,6 +583,12 @@ public class TourManager {
 
         // Close the connection (can also be used to stop the thread)
 	public synchronized void close() {
+	    disconnect();
+	    setDone(true);  // Connection done, nothing left to do...
+	}
+
+	// Close the connection (without ending the manager)
+	private synchronized void disconnect() {
 	    try {
 		if (in != null) in.close();
 		if (out != null) out.close();
@@ -488,7 +597,6 @@ public class TourManager {
 		error("Error trying to close client connection: " + e.getMessage());
 	    } finally {
 		in = null; out = null; sock = null;
-		setDone(true);  // Connection done, nothing left to do...
 	    }
 	}
 
@@ -0,0 +1,58 @@
+package cad.ai.game;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/***********************************************************
+ * Creates AIs from a short text specification (used by the Arena and
+ * the TournamentSimulator).  Every call to newAI returns an independent
+ * instance so each can play on its own thread.  TicTacToeAI brains are
+ * loaded only once and then shared read-only - these AIs do not learn.
+ * A brain that can not be read is an error (not an empty brain).
+ *   ttt:BRAIN   - TicTacToeAI playing from data/BRAIN.ser
+ *   ttt-random  - TicTacToeAI picking random moves
+ *   nim         - NimAI
+ *   class:NAME  - Any AI class with a no-arg constructor
+ ***********************************************************/
+public class AIFactory {
+    private final String spec;
+    private HashMap<String, BoardRecord> brain = null;  // Shared, read-only (TicTacToeAI)
+    private int aiType = 1;
+    private Class<?> aiClass = null;                    // Any other AI (no-arg constructor)
+
+    public AIFactory(String spec) throws ClassNotFoundException, IOException {
+        this.spec = spec;
+        if (spec.startsWith("ttt:")) {
+            brain = TicTacToeAI.readBrain(spec.substring(4));
+        } else if (spec.equals("ttt-random")) {
+            brain = new HashMap<String, BoardRecord>();
+            aiType = 2;
+        } else if (spec.equals("nim")) {
+            aiClass = NimAI.class;
+        } else if (spec.startsWith("class:")) {
+            aiClass = Class.forName(spec.substring(6));
+        } else {
+            throw new IllegalArgumentException("Unrecognized AI: " + spec);
+        }
+    }
+
+    public String getSpec() { return spec; }
+
+    /**
+     * Create a new (independent) AI.
+     **/
+    public AI newAI() throws ReflectiveOperationException {
+        if (brain != null) return new TicTacToeAI(brain, aiType);
+        return (AI) aiClass.getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Print the recognized specifications (for usage messages).
+     **/
+    public static void printSpecs(String indent) {
+        System.err.println(indent + "ttt:BRAIN   TicTacToeAI with brain data/BRAIN.ser");
+        System.err.println(indent + "ttt-random  TicTacToeAI picking random moves");
+        System.err.println(indent + "nim         NimAI");
+        System.err.println(indent + "class:NAME  Any AI class with a no-arg constructor");
+    }
+}
@@ -0,0 +1,337 @@
+package cad.ai.game;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/***********************************************************
+ * Offline evaluation harness for ranking AIs.
+ *   Every pair of entrants plays paired games (each AI plays both Home
+ *   and Away) through DirectPlay, with the batches of games spread over a
+ *   pool of threads.  Each task gets its own AI instances (see AIFactory,
+ *   TicTacToeAI brains are loaded once and shared read-only).  At the end Elo ratings (Bradley-Terry fit) with 95%
+ *   confidence intervals are reported for all entrants along with the
+ *   result of every pairing.  Optionally each pairing is stopped as soon as
+ *   a sequential probability ratio test (SPRT) has decided it.
+ ***********************************************************/
+public class Arena {
+    private static final double Z = 1.96;          // 95% confidence
+    private static final double MIN_VARIANCE = 0.01; // Guard against zero variance (e.g. nothing but ties)
+
+    // An AI taking part
+    private static class Entrant {
+        final String name;
+        final AIFactory factory;
+
+        Entrant(String name, String spec) throws Exception {
+            this.name = name;
+            this.factory = new AIFactory(spec);
+        }
+
+        AI newAI() throws Exception { return factory.newAI(); }
+    }
+
+    // All the games between entrants a and b (counted from a's point of view)
+    private static class Pairing {
+        final int a, b;
+        int wins = 0, ties = 0, losses = 0;
+        String decision = null;  // The SPRT decision (null while undecided)
+
+        Pairing(int a, int b) { this.a = a; this.b = b; }
+
+        synchronized int games() { return wins + ties + losses; }
+        synchronized double score() { return (wins + 0.5 * ties) / games(); }
+        synchronized boolean isDecided() { return decision != null; }
+
+        // Per game variance of a's score
+        synchronized double variance() {
+            double s = score();
+            return (wins * (1 - s) * (1 - s) + ties * (0.5 - s) * (0.5 - s) + losses * s * s) / games();
+        }
+    }
+
+    private final boolean nim;            // Playing Nim (otherwise Tic-Tac-Toe)
+    private final List<Entrant> entrant;
+    private final List<Pairing> pairing;
+    private final int games;              // Maximum paired games per pairing
+    private final int batch;              // Paired games per task
+    private final int threads;
+    private boolean sprt = false;         // Stop pairings early once decided
+    private double elo0, elo1, alpha, beta;
+
+    private Arena(boolean nim, List<Entrant> entrant, int games, int batch, int threads) {
+        this.nim = nim;
+        this.entrant = entrant;
+        this.games = games;
+        this.batch = Math.max(1, batch);
+        this.threads = Math.max(1, threads);
+        this.pairing = new ArrayList<Pairing>();
+        for (int i = 0; i < entrant.size(); i++)
+            for (int j = i + 1; j < entrant.size(); j++)
+                pairing.add(new Pairing(i, j));
+    }
+
+    /**
+     * Stop a pairing as soon as the SPRT decides between
+     *   H0: the Elo difference is elo0, and H1: it is elo1
+     * with error rates alpha and beta.
+     **/
+    public void enableSPRT(double elo0, double elo1, double alpha, double beta) {
+        this.sprt = true;
+        this.elo0 = elo0;
+        this.elo1 = elo1;
+        this.alpha = alpha;
+        this.beta = beta;
+    }
+
+    /**
+     * Play all the games (on the thread pool) and report the results.
+     **/
+    public void run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+
+        // Interleave the batches so all pairings progress together.
+        for (int played = 0; played < games; played += batch) {
+            final int n = Math.min(batch, games - played);
+            for (final Pairing p: pairing)
+                executor.execute(() -> playBatch(p, n));
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        report(seconds);
+    }
+
+    // Play n paired games between the entrants of the pairing (unless already decided).
+    private void playBatch(Pairing p, int n) {
+        if (p.isDecided()) return;
+        try {
+            AI a = entrant.get(p.a).newAI();
+            AI b = entrant.get(p.b).newAI();
+            int wins = 0, ties = 0, losses = 0;
+            for (int i = 0; i < n; i++) {
+                int w = play(a, b);        // a is Home
+                if (w == 0) wins++; else if (w == 1) losses++; else ties++;
+                w = play(b, a);            // a is Away
+                if (w == 1) wins++; else if (w == 0) losses++; else ties++;
+            }
+            synchronized (p) {
+                p.wins += wins;
+                p.ties += ties;
+                p.losses += losses;
+                if (sprt && p.decision == null) p.decision = sprtDecision(p);
+            }
+        } catch (Exception e) {
+            System.err.println("ERROR: Could not play " + entrant.get(p.a).name + " vs " +
+                               entrant.get(p.b).name + ". " + e);
+        }
+    }
+
+    private int play(AI home, AI away) {
+        return nim ? DirectPlay.playNim(home, away) : DirectPlay.playTicTacToe(home, away);
+    }
+
+    // Expected score for an Elo difference (and back again)
+    private static double expectedScore(double elo) {
+        return 1 / (1 + Math.pow(10, -elo / 400));
+    }
+
+    private static double elo(double score) {
+        return -400 * Math.log10(1 / score - 1);
+    }
+
+    // Elo of a score - clamped so that a clean sweep is still finite
+    private static double elo(double score, int games) {
+        double margin = 0.5 / Math.max(1, games);
+        return elo(Math.min(1 - margin, Math.max(margin, score)));
+    }
+
+    /**
+     * The SPRT log likelihood ratio (normal approximation) of H1 over H0
+     * and the decision once it crosses a bound (null if still undecided).
+     **/
+    private String sprtDecision(Pairing p) {
+        int n = p.games();
+        double s0 = expectedScore(elo0), s1 = expectedScore(elo1);
+        double var = Math.max(MIN_VARIANCE, p.variance());
+        double llr = (s1 - s0) / var * (p.score() * n - n * (s0 + s1) / 2);
+        double lower = Math.log(beta / (1 - alpha));
+        double upper = Math.log((1 - beta) / alpha);
+        if (llr >= upper) return String.format(Locale.ROOT, "H1 (>= %+.0f) after %d games", elo1, n);
+        if (llr <= lower) return String.format(Locale.ROOT, "H0 (<= %+.0f) after %d games", elo0, n);
+        return null;
+    }
+
+    /**
+     * Print the ratings (Bradley-Terry maximum likelihood, ties count half)
+     * and the result of each pairing.
+     **/
+    private void report(double seconds) {
+        int k = entrant.size();
+        double[][] score = new double[k][k];  // Points of i against j (plus a virtual tie)
+        double[][] count = new double[k][k];  // Games between i and j (plus a virtual tie)
+        long total = 0;
+        for (Pairing p: pairing) {
+            int n = p.games();
+            total += n;
+            if (n == 0) continue;
+            score[p.a][p.b] = p.wins + 0.5 * p.ties + 0.5;
+            score[p.b][p.a] = p.losses + 0.5 * p.ties + 0.5;
+            count[p.a][p.b] = count[p.b][p.a] = n + 1;
+        }
+
+        // Minorization-maximization for the Bradley-Terry strengths
+        double[] gamma = new double[k];
+        Arrays.fill(gamma, 1.0);
+        for (int iter = 0; iter < 1000; iter++) {
+            double logSum = 0;
+            for (int i = 0; i < k; i++) {
+                double w = 0, d = 0;
+                for (int j = 0; j < k; j++) {
+                    if (count[i][j] == 0) continue;
+                    w += score[i][j];
+                    d += count[i][j] / (gamma[i] + gamma[j]);
+                }
+                if (d > 0) gamma[i] = w / d;
+                logSum += Math.log(gamma[i]);
+            }
+            double norm = Math.exp(logSum / k);  // Keep the average rating at 0
+            for (int i = 0; i < k; i++) gamma[i] /= norm;
+        }
+
+        System.out.println(String.format(Locale.ROOT, "Played %d games in %.1f seconds (%.0f games/sec) on %d threads.",
+                                         total, seconds, total / seconds, threads));
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-20s %8s %8s %8s", "AI", "Elo", "+/-", "Games"));
+        Integer[] order = new Integer[k];
+        for (int i = 0; i < k; i++) order[i] = i;
+        Arrays.sort(order, (x, y) -> Double.compare(gamma[y], gamma[x]));
+        for (int i: order) {
+            // Standard error from the Fisher information of the fit
+            double info = 0;
+            long played = 0;
+            for (int j = 0; j < k; j++) {
+                if (count[i][j] == 0) continue;
+                double pij = gamma[i] / (gamma[i] + gamma[j]);
+                info += count[i][j] * pij * (1 - pij);
+                played += (long) count[i][j] - 1;
+            }
+            double se = (info > 0) ? (400 / Math.log(10)) / Math.sqrt(info) : Double.POSITIVE_INFINITY;
+            System.out.println(String.format(Locale.ROOT, "%-20s %+8.1f %8.1f %8d",
+                                             entrant.get(i).name, 400 * Math.log10(gamma[i]), Z * se, played));
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-20s %-20s %17s %24s  %s",
+                                         "AI", "Opponent", "W-T-L", "Elo difference [95%]", "SPRT"));
+        for (Pairing p: pairing) {
+            int n = p.games();
+            String diff = "-";
+            if (n > 0) {
+                double s = p.score(), se = Math.sqrt(p.variance() / n);
+                diff = String.format(Locale.ROOT, "%+.1f [%+.1f, %+.1f]", elo(s, n),
+                                     elo(s - Z * se, n), elo(s + Z * se, n));
+            }
+            System.out.println(String.format(Locale.ROOT, "%-20s %-20s %17s %24s  %s",
+                                             entrant.get(p.a).name, entrant.get(p.b).name,
+                                             p.wins + "-" + p.ties + "-" + p.losses, diff,
+                                             p.decision != null ? p.decision : (sprt ? "undecided" : "")));
+        }
+    }
+
+    /**
+     * The main entry point.
+     **/
+    public static void main(String[] args) {
+        boolean nim = false;
+        List<Entrant> entrant = new ArrayList<Entrant>();
+        int games = 1000;
+        int batch = 100;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double[] sprt = null;
+
+        for (String arg: args) {
+            try {
+                String[] params = arg.split("=", 2);
+                switch (params[0]) {
+                    case "--help":
+                        printUsage(null);
+                        break;
+                    case "--game":
+                        switch (params[1].toUpperCase()) {
+                            case "NIM":
+                                nim = true;
+                                break;
+                            case "TTT":
+                                nim = false;
+                                break;
+                            default:
+                                printUsage("Unrecognized game option: " + params[1]);
+                        }
+                        break;
+                    case "--ai":
+                        // NAME=SPEC or just SPEC (which is then also the name)
+                        String[] ai = params[1].split("=", 2);
+                        entrant.add(ai.length == 2 ? new Entrant(ai[0], ai[1]) : new Entrant(ai[0], ai[0]));
+                        break;
+                    case "--games":
+                        games = Integer.parseInt(params[1]);
+                        break;
+                    case "--batch":
+                        batch = Integer.parseInt(params[1]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(params[1]);
+                        break;
+                    case "--sprt":
+                        // ELO0,ELO1[,ALPHA,BETA]
+                        String[] v = params[1].split(",");
+                        sprt = new double[] { Double.parseDouble(v[0]), Double.parseDouble(v[1]),
+                                              v.length > 2 ? Double.parseDouble(v[2]) : 0.05,
+                                              v.length > 3 ? Double.parseDouble(v[3]) : 0.05 };
+                        break;
+                    default:
+                        printUsage("Unrecognized parameter: " + arg);
+                }
+            } catch (Exception e) {
+                printUsage("Error processing parameter: " + arg + " (" + e.getMessage() + ")");
+            }
+        }
+        if (entrant.size() < 2)
+            printUsage("At least two AIs are needed.");
+
+        Arena arena = new Arena(nim, entrant, games, batch, threads);
+        if (sprt != null) arena.enableSPRT(sprt[0], sprt[1], sprt[2], sprt[3]);
+        try {
+            arena.run();
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted.");
+        }
+    }
+
+    /**
+     * Print Usage message and exit
+     **/
+    private static void printUsage(String message) {
+        System.err.println("Usage: java cad.ai.game.Arena [params]");
+        System.err.println("       Where params are:");
+        System.err.println("         --help                -- Print this usage message");
+        System.err.println("         --game=XXX            -- Can be either NIM or TTT (Tic-Tac-Toe).");
+        System.err.println("         --ai=[NAME=]SPEC      -- Add an AI (at least two).  SPEC is one of");
+        AIFactory.printSpecs("                                    ");
+        System.err.println("         --games=X             -- Paired games (both colors) per pair of AIs (default 1000).");
+        System.err.println("         --batch=X             -- Paired games per task (default 100).");
+        System.err.println("         --threads=X           -- Threads to play on (default is all cores).");
+        System.err.println("         --sprt=E0,E1[,A,B]    -- Stop a pair once the SPRT decides between Elo E0 and E1");
+        System.err.println("                                  (error rates A and B, default 0.05).");
+        if (message != null)
+            System.err.println("       " + message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,24 @@
+package cad.ai.game;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/***********************************************************
+ * An AI whose training can be checkpointed part way through a run
+ * and resumed later (see PlayGame --checkpoint and --resume).
+ * The run's checkpoint is one file holding the games played and the
+ * state of each AI, in the order of the sides (see PlayGame.saveCheckpoint).
+ ***********************************************************/
+public interface Checkpointable {
+    /**
+     * Write the learned experience AND the training state (counters,
+     * random number generator, ...) so the run can be resumed.
+     **/
+    public void saveCheckpoint(ObjectOutputStream out) throws IOException;
+
+    /**
+     * Restore the state written by saveCheckpoint.
+     **/
+    public void resumeCheckpoint(ObjectInputStream in) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,16 @@
+package cad.ai.game;
+
+/***********************************************************
+ * A Game whose clients can follow it move by move: instead of the whole
+ * state after every change (updateState) they are sent just the move that
+ * was made and apply it to their copy of the state.
+ ***********************************************************/
+public interface DeltaGame extends Game {
+    /**
+     * Apply the move of player p (already accepted by the server) to the
+     * current state, which also passes the turn to the other player.
+     * Returns false if it does not fit the state (e.g. no state yet) - the
+     * client is out of sync and needs the full state again.
+     **/
+    public boolean applyDelta(int p, String move);
+}
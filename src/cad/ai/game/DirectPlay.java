@@ -0,0 +1,94 @@
+package cad.ai.game;
+
+/***********************************************************
+ * Headless, in-process play of a single game between two AIs.
+ *   Both players and the referee (the "server" game) share the same
+ *   in-memory state and moves are passed as primitives, so there is no
+ *   getState/updateState String round-trip, no "@GAME:MOVE:" parsing and
+ *   no display.  Only the referee's legality check remains.
+ *   Used by PlayGame in --fast mode.
+ ***********************************************************/
+public class DirectPlay {
+    private static final int MAX_ERRORS = 5;  // Illegal moves in a row before a player forfeits
+
+    /**
+     * Play one game of Tic-Tac-Toe.
+     * Returns the winner: 0=Home, 1=Away, -1=Tie
+     **/
+    public static int playTicTacToe(AI home, AI away) {
+        TicTacToeGame referee = new TicTacToeGame(-1, null, null, true, 0);
+        TicTacToeGame[] game = new TicTacToeGame[2];
+        AI[] ai = { home, away };
+        for (int p = 0; p < 2; p++) {
+            game[p] = new TicTacToeGame(p, null, ai[p], false, 0);
+            game[p].shareState(referee);
+        }
+
+        int errors = 0;
+        while (!referee.isDone()) {
+            int p = referee.getTurn();
+            int slot = (ai[p] instanceof TicTacToeAI) ?
+                ((TicTacToeAI) ai[p]).computeSlot() : parseInt(ai[p].computeMove());
+            if (referee.applyMove(p, slot))
+                errors = 0;
+            else if (++errors > MAX_ERRORS)
+                referee.resign(p);
+        }
+
+        return postWinner(referee.getWinner(), ai);
+    }
+
+    /**
+     * Play one game of Nim.
+     * Returns the winner: 0=Home, 1=Away
+     **/
+    public static int playNim(AI home, AI away) {
+        NimGame referee = new NimGame(-1, null, null, true, 0);
+        NimGame[] game = new NimGame[2];
+        AI[] ai = { home, away };
+        for (int p = 0; p < 2; p++) {
+            game[p] = new NimGame(p, null, ai[p], false, 0);
+            game[p].shareState(referee);
+        }
+
+        int errors = 0;
+        while (!referee.isDone()) {
+            int p = referee.getTurn();
+            int row = -1, take = 0;
+            if (ai[p] instanceof NimAI) {
+                int[] move = ((NimAI) ai[p]).computeRowTake();
+                row = move[0];
+                take = move[1];
+            } else {
+                String[] move = ai[p].computeMove().split(",", 2);
+                if (move.length == 2) {
+                    row = parseInt(move[0]);
+                    take = parseInt(move[1]);
+                }
+            }
+            if (referee.applyMove(p, row, take))
+                errors = 0;
+            else if (++errors > MAX_ERRORS)
+                referee.resign(p);
+        }
+
+        return postWinner(referee.getWinner(), ai);
+    }
+
+    // Let both AIs know the result (no display, so skip the Game's postWinner).
+    private static int postWinner(int winner, AI[] ai) {
+        char r = winner == 0 ? 'H' : winner == 1 ? 'A' : 'T';
+        ai[0].postWinner(r);
+        ai[1].postWinner(r);
+        return winner;
+    }
+
+    // Moves from AIs without a primitive interface - an unparsable move is just illegal.
+    private static int parseInt(String s) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cad.ai.game;
+
+import java.util.Locale;
+
+/***********************************************************
+ * Convergence detection for self-play training in PlayGame.
+ *   Outcomes are collected in windows of a fixed number of games.  At the
+ *   end of each window the watched rate (the tie rate, or the home win rate
+ *   when playing against a reference opponent) is compared with the
+ *   previous window using a two-proportion z-test, and the growth of the
+ *   brains (long term memory sizes) over the window is measured.
+ *   A window is "stable" if the rate did not change significantly, the
+ *   brains grew by less than minGrowth (relative) and the rate reached the
+ *   target (if one was given).  Training is converged after patience
+ *   stable windows in a row.
+ ***********************************************************/
+public class EarlyStop {
+    public static enum Metric { TIE, WIN };
+    private static final double Z_CRITICAL = 1.96;  // Two-sided 95%
+
+    private final Metric metric;
+    private final AI[] ai;
+    private final int window;        // Games per window
+    private final int patience;      // Stable windows in a row required
+    private final double minGrowth;  // Relative brain growth per window considered "still learning"
+    private final double target;     // Minimum rate to stop at (negative if none)
+
+    private int games = 0, hits = 0;  // In the current window
+    private double lastRate = -1;     // Rate of the previous window (-1 if none yet)
+    private long lastBrainSize;
+    private int stable = 0;           // Stable windows in a row
+    private String reason = null;     // Why training converged (null until it has)
+
+    /**
+     * @param metric    What rate to watch
+     * @param ai        The home and away AI (either may be null)
+     * @param window    Games per window
+     * @param patience  Number of stable windows in a row before stopping
+     * @param minGrowth Relative growth of the brains per window below which they are considered stable
+     * @param target    Rate the metric has to reach before stopping (negative for none)
+     **/
+    public EarlyStop(Metric metric, AI[] ai, int window, int patience, double minGrowth, double target) {
+        this.metric = metric;
+        this.ai = ai;
+        this.window = Math.max(1, window);
+        this.patience = Math.max(1, patience);
+        this.minGrowth = minGrowth;
+        this.target = target;
+        this.lastBrainSize = brainSize();
+    }
+
+    /**
+     * Record the result of a game (0=Home, 1=Away, otherwise a tie).
+     * Returns true once training has converged.
+     **/
+    public boolean gamePlayed(int winner) {
+        games++;
+        if (metric == Metric.TIE ? (winner != 0 && winner != 1) : winner == 0) hits++;
+        if (games >= window) endWindow();
+        return reason != null;
+    }
+
+    /**
+     * Why training was stopped (null if it has not converged).
+     **/
+    public String getReason() { return reason; }
+
+    // Evaluate the window that just completed and start a new one.
+    private void endWindow() {
+        double rate = (double) hits / games;
+        long size = brainSize();
+        double growth = (lastBrainSize > 0) ? (double) (size - lastBrainSize) / lastBrainSize :
+            (size > 0 ? 1.0 : 0.0);
+        double z = (lastRate < 0) ? Double.POSITIVE_INFINITY : zScore(lastRate, rate, games);
+
+        if (Math.abs(z) < Z_CRITICAL && growth < minGrowth && (target < 0 || rate >= target))
+            stable++;
+        else
+            stable = 0;
+
+        if (stable >= patience)
+            reason = String.format(Locale.ROOT,
+                "%s rate %.4f unchanged (|z| < %.2f) and brain growth below %.4f%% for %d windows of %d games",
+                metric == Metric.TIE ? "Tie" : "Win", rate, Z_CRITICAL, minGrowth * 100, stable, window);
+
+        lastRate = rate;
+        lastBrainSize = size;
+        games = hits = 0;
+    }
+
+    // Two-proportion z statistic for two windows of n games each.
+    private static double zScore(double p1, double p2, int n) {
+        double p = (p1 + p2) / 2;
+        double se = Math.sqrt(p * (1 - p) * 2.0 / n);
+        if (se == 0) return (p1 == p2) ? 0 : Double.POSITIVE_INFINITY;
+        return (p2 - p1) / se;
+    }
+
+    // Total long term memory size of the (TicTacToe) AIs.
+    private long brainSize() {
+        long size = 0;
+        for (AI a: ai)
+            if (a instanceof TicTacToeAI) size += ((TicTacToeAI) a).getBrainSize();
+        return size;
+    }
+}
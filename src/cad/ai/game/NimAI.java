@@ -42,7 +42,16 @@ public class NimAI extends AbstractAI {
 	    System.err.println("CODE ERROR: AI is not attached to a game.");
 	    return "0,0";
 	}
-	
+
+	int[] move = computeRowTake();
+	return move[0] + "," + move[1];
+    }
+
+    /**
+     * Returns the Move as {R, S} directly (no String round-trip).
+     *    Used by DirectPlay for headless offline games.
+     **/
+    public synchronized int[] computeRowTake() {
 	int[] rows = (int[]) game.getStateAsObject();
 
 	// Just pick a random amount from a random row (that isn't zero)
@@ -50,6 +59,6 @@ public class NimAI extends AbstractAI {
 	while (rows[r] == 0) r = (r + 1) % rows.length;  // Find next row that is not zero (while loop if all 0s!)
 
 	int take = ran.nextInt(rows[r]) + 1;
-	return r + "," + take;
-    }	
+	return new int[] { r, take };
+    }
 }
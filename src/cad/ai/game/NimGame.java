@@ -22,7 +22,7 @@ import java.io.IOException;
  *   The number of rows will vary from MIN_ROW to MAX_ROW (inclusive of both)
  *   The number of sticks per row will vary from MIN_STICK to MAX_STICK (inclusive of both)
  ***********************************************************/
-public class NimGame implements Game {
+public class NimGame implements DeltaGame {
     private static final int MIN_ROW = 3;
     private static final int MAX_ROW = 10;
     private static final int MIN_STICK = 5;
@@ -36,6 +36,7 @@ public class NimGame implements Game {
     private int winner = -3;
     private BufferedReader in; // The input to use (when not in AI mode)
     private NimAI ai;   // AI system
+    private int verbose; // Level of verbosity - currently 0=quiet, >0 output stuff
 
     /**
      * Constructors
@@ -53,7 +54,12 @@ public class NimGame implements Game {
     }
 
     public NimGame(int player, BufferedReader in, AI ai, boolean createFlag) {
+        this(player, in, ai, createFlag, 1);
+    }
+
+    public NimGame(int player, BufferedReader in, AI ai, boolean createFlag, int verbose) {
         this.player = player;
+        this.verbose = verbose;
         this.in = in;
         this.ai = (NimAI) ai;
         this.changed = true;
@@ -137,12 +143,34 @@ public class NimGame implements Game {
             for (int i = 0; i < numRows; i++)
                 this.sticks[i] = Integer.parseInt(pieces[i + 2]);
 
-            displayState();
+            if (verbose > 0)
+                displayState();
         } catch (NumberFormatException e) {
             System.err.println("There was an error in the state that was sent. " + state);
         }
     }
 
+    /**
+     * Apply the move ROW,TAKE of player p (see DeltaGame) - the sticks are
+     * taken from the row here rather than the whole state being sent.
+     **/
+    public synchronized boolean applyDelta(int p, String move) {
+        if (sticks == null) return false;  // No state to apply it to
+        try {
+            String[] split = move.split(",", 2);
+            int row = Integer.parseInt(split[0]);
+            int take = Integer.parseInt(split[1]);
+            if (row < 0 || row >= sticks.length || take <= 0 || sticks[row] < take) return false;
+            sticks[row] -= take;
+            turn = p ^ 1;
+        } catch (Exception e) {
+            return false;
+        }
+        if (verbose > 0)
+            displayState();
+        return true;
+    }
+
     /**
      * Display the current state.  We'll use a text-based version here.
      **/
@@ -189,7 +217,8 @@ public class NimGame implements Game {
         } else {
             // Get the move from the AI
             String move = ai.computeMove();
-            System.out.println("AI chose to move " + move);
+            if (verbose > 0)
+                System.out.println("AI chose to move " + move);
             turn = -1;  // Avoid asking again until we know whose turn it is
             return ("@GAME:MOVE:" + move);
         }
@@ -231,6 +260,31 @@ public class NimGame implements Game {
         }
     }
 
+    /**
+     * Apply a move given directly as row and take - used by DirectPlay for
+     * offline games.  Only the legality checks of processMove are done (no
+     * String parsing or messages).  Returns true if the move was made.
+     **/
+    public boolean applyMove(int p, int row, int take) {
+        if (p != turn || row < 0 || row >= sticks.length || take <= 0 || sticks[row] < take)
+            return false;
+        sticks[row] -= take;
+        turn ^= 1;  // Switch turn from 0 to 1 or 1 to 0
+        changed = true;
+        if (sticks[row] == 0 && isDoneCheck())
+            winner = (turn ^ 1);
+        return true;
+    }
+
+    /**
+     * Share the sticks of the given (server) game rather than receiving them as
+     * a String through updateState.  The array is not copied so this game
+     * always sees the current state of the referee.
+     **/
+    public synchronized void shareState(NimGame referee) {
+        this.sticks = referee.sticks;
+    }
+
     /**
      * Is it current user's turn?  Based on state information...
      **/
@@ -278,18 +332,20 @@ public class NimGame implements Game {
      * result is either (H)ome win, (A)way win, (T)ie
      **/
     public synchronized void postWinner(char result) {
-        switch (result) {
-            case 'T':
-                System.out.println("It was a TIE!");
-                break;
-            case 'H':
-                System.out.println((player == 0) ? "You won!" : "You lost.");
-                break;
-            case 'A':
-                System.out.println((player == 1) ? "You won!" : "You lost.");
-                break;
-            default:
-                System.out.println("Unrecognized winner.");
+        if (verbose > 0) {
+            switch (result) {
+                case 'T':
+                    System.out.println("It was a TIE!");
+                    break;
+                case 'H':
+                    System.out.println((player == 0) ? "You won!" : "You lost.");
+                    break;
+                case 'A':
+                    System.out.println((player == 1) ? "You won!" : "You lost.");
+                    break;
+                default:
+                    System.out.println("Unrecognized winner.");
+            }
         }
 
         if (ai != null) ai.postWinner(result);  // Let AI know as well.
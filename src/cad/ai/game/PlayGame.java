@@ -9,8 +9,18 @@
 */
 package cad.ai.game;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /***********************************************************
  * The PlayGame class is designed to allow two players to player against each
@@ -21,6 +31,7 @@ import java.io.InputStreamReader;
  * in a future release.
  ***********************************************************/
 public class PlayGame {
+    private static final String CHECKPOINT = "data/playgame.ckpt"; // Progress of the run and the AIs (see saveCheckpoint)
     private BufferedReader userIn = null; // Access to user input
     private Game game[];
     private Game serverGame = null;
@@ -33,6 +44,15 @@ public class PlayGame {
     private GameType gameType;
     private int numGames;
     private int verbose;
+    private boolean fast;
+    private int statsEvery = 0;      // Games per telemetry sample (0 = no telemetry)
+    private String statsFile = null; // Where to stream telemetry (null = stdout only)
+    private EarlyStop.Metric stopMetric = null; // Rate to watch for early stopping (null = off)
+    private int stopWindow, stopPatience;
+    private double stopMinGrowth, stopTarget;
+    private int checkpointEvery = 0;      // Checkpoint every N games (0 = never)
+    private long checkpointMillis = 0;    // Checkpoint every T milliseconds (0 = never)
+    private boolean resume = false;       // Resume from the latest checkpoint
 
     /**
      * Constructor
@@ -42,8 +62,9 @@ public class PlayGame {
      * @param gameType - what type of game to play.
      * @param numGames - the number of games to play.
      * @param verbose  - how much to output [0 = quite, >0 = noisier]
+     * @param fast     - play headless through DirectPlay (both players must be AI)
      **/
-    public PlayGame(int homeAI, int awayAI, GameType gameType, int numGames, int verbose) {
+    public PlayGame(int homeAI, int awayAI, GameType gameType, int numGames, int verbose, boolean fast) {
         userIn = new BufferedReader(new InputStreamReader(System.in)); // To
         // access
         // user
@@ -54,6 +75,7 @@ public class PlayGame {
         this.gameType = gameType;
         this.numGames = numGames;
         this.verbose = verbose;
+        this.fast = fast;
 
         // Create the game and AI based on type
         // Create the AI based on type
@@ -101,21 +123,169 @@ public class PlayGame {
         }
     }
 
+    /**
+     * Stream rolling training statistics every N games (see TrainingTelemetry)
+     *
+     * @param every    - games per sample
+     * @param fileName - CSV (.csv) or JSON lines file to write to, null for stdout only
+     **/
+    public void enableTelemetry(int every, String fileName) {
+        this.statsEvery = every;
+        this.statsFile = fileName;
+    }
+
+    /**
+     * Stop training early once it has converged (see EarlyStop)
+     *
+     * @param metric    - rate to watch (tie rate or home win rate)
+     * @param window    - games per window
+     * @param patience  - stable windows in a row before stopping
+     * @param minGrowth - relative brain growth per window still counted as stable
+     * @param target    - rate that must be reached before stopping (negative for none)
+     **/
+    public void enableEarlyStop(EarlyStop.Metric metric, int window, int patience, double minGrowth, double target) {
+        this.stopMetric = metric;
+        this.stopWindow = window;
+        this.stopPatience = patience;
+        this.stopMinGrowth = minGrowth;
+        this.stopTarget = target;
+    }
+
+    /**
+     * Periodically checkpoint the run (every N games and/or every T minutes)
+     * and optionally resume from the latest checkpoint.
+     *
+     * @param every   - games between checkpoints (0 = never)
+     * @param minutes - minutes between checkpoints (0 = never)
+     * @param resume  - continue from the latest checkpoint (if there is one)
+     **/
+    public void enableCheckpoints(int every, double minutes, boolean resume) {
+        this.checkpointEvery = every;
+        this.checkpointMillis = (long) (minutes * 60000);
+        this.resume = resume;
+    }
+
+    /**
+     * Save how many games of the run have been played together with the
+     * AIs' training state, all in one file.  It is written to a temporary
+     * file, forced to the disk and then renamed over the previous
+     * checkpoint in one step - so a kill part way through leaves the
+     * previous (complete) checkpoint in place.
+     **/
+    private void saveCheckpoint(int gamesPlayed) {
+        File tmp = new File(CHECKPOINT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(file))) {
+            out.writeUTF(gameType.toString());
+            out.writeInt(gamesPlayed);
+            for (int i = 0; i < ai.length; i++) {  // Home then away
+                boolean saved = ai[i] instanceof Checkpointable;
+                out.writeBoolean(saved);
+                if (saved) ((Checkpointable) ai[i]).saveCheckpoint(out);
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            error("Could not write checkpoint. " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), new File(CHECKPOINT).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            error("Could not write checkpoint. " + e.getMessage());
+            return;
+        }
+        if (verbose > 0)
+            System.out.println("Checkpoint saved after " + gamesPlayed + " games.");
+    }
+
+    /**
+     * Restore the AIs from the latest checkpoint.
+     * Returns the number of games of the run already played (0 if no checkpoint).
+     **/
+    private int resumeCheckpoint() {
+        File file = new File(CHECKPOINT);
+        if (!file.exists()) {
+            System.out.println("No checkpoint to resume from.  Starting a new run.");
+            return 0;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            String game = in.readUTF();
+            if (!gameType.toString().equals(game)) {
+                error("Checkpoint is for a " + game + " run.  Starting a new run.");
+                return 0;
+            }
+            int played = in.readInt();
+            for (int i = 0; i < ai.length; i++) {
+                boolean saved = in.readBoolean();
+                if (saved != (ai[i] instanceof Checkpointable))
+                    throw new IOException("It is for other players.");
+                if (saved) ((Checkpointable) ai[i]).resumeCheckpoint(in);
+            }
+            System.out.println("Resuming run after " + played + " of " + numGames + " games.");
+            return played;
+        } catch (IOException | ClassNotFoundException e) {
+            // Some AIs may be restored already: do not train them on from there as a new run
+            error("Could not read checkpoint. " + e.getMessage());
+            System.exit(1);
+            return 0;
+        }
+    }
+
     /**
      * Start playing the game
      **/
     private void run() {
+        int first = resume ? resumeCheckpoint() : 0;  // First: the statistics start from the restored AIs
+        long lastCheckpoint = System.currentTimeMillis();
+
+        TrainingTelemetry telemetry = null;
+        if (statsEvery > 0) {
+            try {
+                telemetry = new TrainingTelemetry(ai, statsEvery, statsFile, first);
+            } catch (IOException e) {
+                error("Could not open statistics file " + statsFile + ". " + e.getMessage());
+            }
+        }
+
+        EarlyStop earlyStop = null;
+        if (stopMetric != null)
+            earlyStop = new EarlyStop(stopMetric, ai, stopWindow, stopPatience, stopMinGrowth, stopTarget);
+
         // Play multiple games...
-        for (int i = 0; i < numGames; i++) {
-            createGame();
-            playGame();
+        for (int i = first; i < numGames; i++) {
+            int winner;
+            if (fast) {
+                winner = playGameDirect();
+            } else {
+                createGame();
+                winner = playGame();
+            }
+            if (telemetry != null)
+                telemetry.gamePlayed(winner);
+            if (earlyStop != null && earlyStop.gamePlayed(winner)) {
+                System.out.println("Stopped early after " + (i + 1) + " games: " + earlyStop.getReason());
+                break;
+            }
+            if ((checkpointEvery > 0 && (i + 1) % checkpointEvery == 0) ||
+                (checkpointMillis > 0 && System.currentTimeMillis() - lastCheckpoint >= checkpointMillis)) {
+                saveCheckpoint(i + 1);
+                lastCheckpoint = System.currentTimeMillis();
+            }
         }
+        if (telemetry != null)
+            telemetry.close();
 
         // Let both AI's know we are done - so it can save state...
         for (int i = 0; i < ai.length; i++)
             if (ai[i] != null)
                 ai[i].end();
 
+        // The run is complete - nothing left to resume.
+        if (checkpointEvery > 0 || checkpointMillis > 0 || resume)
+            new File(CHECKPOINT).delete();
+
         System.out.println("Good-bye!");
     }
 
@@ -131,16 +301,16 @@ public class PlayGame {
                 break;
             case NIM:
                 for (int p = 0; p < 2; p++)
-                    game[p] = new NimGame(p, userIn, ai[p], false);
-                serverGame = new NimGame(-1, userIn, null, true);
+                    game[p] = new NimGame(p, userIn, ai[p], false, verbose);
+                serverGame = new NimGame(-1, userIn, null, true, verbose);
                 break;
         }
     }
 
     /**
-     * Play the current game
+     * Play the current game.  Returns the winner (0=Home, 1=Away, -1=Tie)
      **/
-    private void playGame() {
+    private int playGame() {
 
         while (!serverGame.isDone()) {
             String state = serverGame.getState(true); // Get the state
@@ -172,6 +342,26 @@ public class PlayGame {
         char r = winner == 0 ? 'H' : winner == 1 ? 'A' : 'T';
         game[0].postWinner(r);
         game[1].postWinner(r);
+        return winner;
+    }
+
+    /**
+     * Play a game headless - no String protocol or display (see DirectPlay)
+     * Returns the winner (0=Home, 1=Away, -1=Tie)
+     **/
+    private int playGameDirect() {
+        int winner = -1;
+        switch (gameType) {
+            case TTT:
+                winner = DirectPlay.playTicTacToe(ai[0], ai[1]);
+                break;
+            case NIM:
+                winner = DirectPlay.playNim(ai[0], ai[1]);
+                break;
+        }
+        if (verbose > 1)
+            System.out.println(winner == 0 ? "Home won." : winner == 1 ? "Away won." : "It was a tie.");
+        return winner;
     }
 
     /**
@@ -314,6 +504,17 @@ public class PlayGame {
         GameType gameType = GameType.TTT; // Default it TTT
         int repeat = 1; // Number of games to play
         int verbose = 1; // How "noisy" to be
+        boolean fast = false; // Headless in-process games (AI only)
+        int statsEvery = 0; // Games per telemetry sample (0 = off)
+        String statsFile = null; // Telemetry file (CSV or JSON lines)
+        EarlyStop.Metric stopMetric = null; // Early stopping (null = play all games)
+        int stopWindow = 1000; // Games per early stopping window
+        int stopPatience = 3; // Stable windows in a row before stopping
+        double stopMinGrowth = 0.001; // Relative brain growth per window still counted as stable
+        double stopTarget = -1; // Rate to reach before stopping (negative = none)
+        int checkpointEvery = 0; // Games between checkpoints (0 = never)
+        double checkpointMinutes = 0; // Minutes between checkpoints (0 = never)
+        boolean resume = false; // Continue from the latest checkpoint
 
         // Parse the arguments
         for (String arg : args) {
@@ -381,6 +582,48 @@ public class PlayGame {
                     case "--verbose":
                         verbose = Integer.parseInt(params[1]);
                         break;
+                    case "--fast":
+                        fast = true;
+                        break;
+                    case "--stats":
+                        statsFile = params[1];
+                        break;
+                    case "--statsEvery":
+                        statsEvery = Integer.parseInt(params[1]);
+                        break;
+                    case "--earlyStop":
+                        switch (params[1].toUpperCase()) {
+                            case "TIE":
+                                stopMetric = EarlyStop.Metric.TIE;
+                                break;
+                            case "WIN":
+                                stopMetric = EarlyStop.Metric.WIN;
+                                break;
+                            default:
+                                printUsage("Unrecognized early stop metric: " + params[1]);
+                        }
+                        break;
+                    case "--window":
+                        stopWindow = Integer.parseInt(params[1]);
+                        break;
+                    case "--patience":
+                        stopPatience = Integer.parseInt(params[1]);
+                        break;
+                    case "--minGrowth":
+                        stopMinGrowth = Double.parseDouble(params[1]);
+                        break;
+                    case "--target":
+                        stopTarget = Double.parseDouble(params[1]);
+                        break;
+                    case "--checkpoint":
+                        checkpointEvery = Integer.parseInt(params[1]);
+                        break;
+                    case "--checkpointMinutes":
+                        checkpointMinutes = Double.parseDouble(params[1]);
+                        break;
+                    case "--resume":
+                        resume = true;
+                        break;
                     default:
                         printUsage("Unrecognized parameter: " + arg);
                 }
@@ -389,7 +632,16 @@ public class PlayGame {
             }
         }
 
-        PlayGame c = new PlayGame(homeAI, awayAI, gameType, repeat, verbose);
+        if (fast && (homeAI == 0 || awayAI == 0))
+            printUsage("--fast requires both home and away to be AI");
+
+        PlayGame c = new PlayGame(homeAI, awayAI, gameType, repeat, verbose, fast);
+        if (statsFile != null || statsEvery > 0)
+            c.enableTelemetry(statsEvery > 0 ? statsEvery : 1000, statsFile);
+        if (stopMetric != null)
+            c.enableEarlyStop(stopMetric, stopWindow, stopPatience, stopMinGrowth, stopTarget);
+        if (checkpointEvery > 0 || checkpointMinutes > 0 || resume)
+            c.enableCheckpoints(checkpointEvery, checkpointMinutes, resume);
         c.run();
     }
 
@@ -406,6 +658,17 @@ public class PlayGame {
         System.err.println("         --game=XXX            -- Can be either NIM or TTT (Tic-Tac-Toe).");
         System.err.println("         --repeat=X            -- Number of games to play (default 1).");
         System.err.println("         --verbose=X           -- 0=quiet, >0=Output more stuff.");
+        System.err.println("         --fast                -- Headless in-process games (no display, AI only).");
+        System.err.println("         --stats=FILE          -- Stream training statistics to FILE (.csv or JSON lines).");
+        System.err.println("         --statsEvery=X        -- Games per statistics sample (default 1000).");
+        System.err.println("         --earlyStop=tie/win   -- Stop once the tie (or home win) rate and brains converge.");
+        System.err.println("         --window=X            -- Games per early stop window (default 1000).");
+        System.err.println("         --patience=X          -- Stable windows in a row before stopping (default 3).");
+        System.err.println("         --minGrowth=X         -- Relative brain growth per window still stable (default 0.001).");
+        System.err.println("         --target=X            -- Rate that must be reached before stopping (default none).");
+        System.err.println("         --checkpoint=X        -- Checkpoint the brains and training state every X games.");
+        System.err.println("         --checkpointMinutes=X -- Checkpoint every X minutes.");
+        System.err.println("         --resume              -- Continue the run from the latest checkpoint.");
         if (message != null)
             System.err.println("       " + message);
         System.exit(1);
@@ -16,13 +16,14 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Objects;
+import java.util.Random;
 
 /***********************************************************
  * The AI system for a TicTacToeGame. Most of the game control is handled by the
  * Server but the move selection is made here - either via user or an attached
  * AI system.
  ***********************************************************/
-public class TicTacToeAI extends AbstractAI implements Serializable {
+public class TicTacToeAI extends AbstractAI implements Serializable, Checkpointable {
 
     private static final long serialVersionUID = -5293683841529261141L;
 
@@ -36,15 +37,22 @@ public class TicTacToeAI extends AbstractAI implements Serializable {
     private int heat = 10000; //Start low (more random) and increase after each game to get less random
     private int heatMax = 10000; //Maximum heat (keep <= 10,000 while training to allow some exploration
     private boolean useHeat = false; //Choose to use the heat value or not when deciding to choose a random or smart move.
+    private boolean learning = true; //Add the outcome of each game to the long term memory
     
     private int gamesPlayed = 0; //Count of the games played during the session
 
+    //Long term memory lookups made while choosing smart moves (and how many were found)
+    private long memoryLookups = 0;
+    private long memoryHits = 0;
+
     public HashMap<String, BoardRecord> longTermMemory;
     private ArrayList<String> shortTermMemory;
 
     private String brainLocation;
     private int aiType;
 
+    private Random random = new Random(); //Saved in checkpoints so a resumed run continues the same sequence
+
     /*
     * AI Types
     * 1 = Smart
@@ -64,6 +72,21 @@ public class TicTacToeAI extends AbstractAI implements Serializable {
         loadMemory();
     }
 
+    /*
+    * Play from an already loaded long term memory without learning from the games played.
+    * The memory is only read so it can be shared by several AIs (e.g. on different threads in the Arena).
+    */
+    public TicTacToeAI(HashMap<String, BoardRecord> memory, int type) {
+        game = null;
+
+        this.brainLocation = null;
+        this.aiType = type;
+        this.learning = false;
+
+        longTermMemory = memory;
+        shortTermMemory = new ArrayList<String>();
+    }
+
     //Return a move based on the current board configuration
     public synchronized String computeMove() {
         if (game == null) {
@@ -71,18 +94,23 @@ public class TicTacToeAI extends AbstractAI implements Serializable {
             return "0,0";
         }
 
+        return "" + computeSlot();
+    }
+
+    //Return the slot of the move directly (no String round-trip, used by DirectPlay)
+    public synchronized int computeSlot() {
         char[] board = (char[]) game.getStateAsObject();
 
         //Choose a smart move if that AI is set to "Smart" or if the random value equals 2
         if (aiType == 1) {
-            if(useHeat && ((int) (Math.random() * heat)) == 2){
-                return "" + getRandomMove(board);
+            if(useHeat && random.nextInt(heat) == 2){
+                return getRandomMove(board);
             }
             else{
-                return "" + getSmartMove(board);
+                return getSmartMove(board);
             }
         } else {
-            return "" + getRandomMove(board);
+            return getRandomMove(board);
         }
     }
 
@@ -90,8 +118,7 @@ public class TicTacToeAI extends AbstractAI implements Serializable {
     private int getRandomMove(char[] boardConfig) {
         ArrayList<Integer> emptySpaces = getEmptySpaces(boardConfig);
 
-        int random = (int) (Math.random() * emptySpaces.size());
-        int randomSpace = emptySpaces.get(random);
+        int randomSpace = emptySpaces.get(random.nextInt(emptySpaces.size()));
         char currentPlayer = (game.getPlayer() == 0) ? 'X' : 'O';
         char[] tempBoard = boardConfig.clone();
 
@@ -130,9 +157,11 @@ public class TicTacToeAI extends AbstractAI implements Serializable {
 
             //Attempt to get the possible move board configuration data from the long term memory
             BoardRecord record = longTermMemory.get(tempBoardString);
+            memoryLookups++;
 
             //Check if a record was found
             if (record != null) {
+                memoryHits++;
 
                 //Calculate the score of the current move in question
                 float currentValue = (float) (record.getWins() - record.getLosses()) / (record.getLosses() + record.getWins() + record.getTies());
@@ -196,6 +225,12 @@ public class TicTacToeAI extends AbstractAI implements Serializable {
             losses++;
         }
 
+        // A read-only memory just forgets the game
+        if (!learning) {
+            shortTermMemory = new ArrayList<>();
+            return;
+        }
+
         // Loop through the short term memory and add each memory to the long term memory
         for (String memory : shortTermMemory) {
 
@@ -256,7 +291,24 @@ public class TicTacToeAI extends AbstractAI implements Serializable {
     @Override
     public synchronized void end() {
         System.out.println("Wins: " + wins + " Ties: " + ties + " Losses: " + losses + " Name: " + brainLocation + " Heat:" + heat);
-        saveMemory();
+        if (learning) saveMemory();
+    }
+
+    //Training statistics (see TrainingTelemetry)
+    public synchronized int getBrainSize() {
+        return longTermMemory.size();
+    }
+
+    public synchronized int getHeat() {
+        return heat;
+    }
+
+    public synchronized long getMemoryLookups() {
+        return memoryLookups;
+    }
+
+    public synchronized long getMemoryHits() {
+        return memoryHits;
     }
 
     //Serialize the long term memory object to a file
@@ -277,6 +329,54 @@ public class TicTacToeAI extends AbstractAI implements Serializable {
         }
     }
 
+    //Write the long term memory along with the training state (heat, counters and random generator)
+    //to the run's checkpoint. Each side has its own place in it, so two AIs sharing a brain file do not mix.
+    @Override
+    public synchronized void saveCheckpoint(ObjectOutputStream out) throws IOException {
+        out.writeObject(longTermMemory);
+        out.writeInt(heat);
+        out.writeInt(gamesPlayed);
+        out.writeInt(wins);
+        out.writeInt(ties);
+        out.writeInt(losses);
+        out.writeLong(memoryLookups);
+        out.writeLong(memoryHits);
+        out.writeObject(random);
+    }
+
+    //Restore the long term memory and training state written by saveCheckpoint
+    @Override
+    public synchronized void resumeCheckpoint(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        longTermMemory = readMemory(in);
+        heat = in.readInt();
+        gamesPlayed = in.readInt();
+        wins = in.readInt();
+        ties = in.readInt();
+        losses = in.readInt();
+        memoryLookups = in.readLong();
+        memoryHits = in.readLong();
+        Object r = in.readObject();
+        if (!(r instanceof Random)) throw new InvalidObjectException("Not a random generator: " + r);
+        random = (Random) r;
+        System.out.println("RESUMED " + brainLocation + " FROM CHECKPOINT AFTER " + gamesPlayed + " GAMES");
+    }
+
+    //Read a long term memory (as written by saveMemory or saveCheckpoint)
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, BoardRecord> readMemory(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        Object memory = in.readObject();
+        if (!(memory instanceof HashMap)) throw new InvalidObjectException("Not a long term memory");
+        return (HashMap<String, BoardRecord>) memory;
+    }
+
+    //Read the long term memory saved in data/NAME.ser - quietly, and failing if there is none
+    //(an AI that is only played, e.g. by the AIFactory, should not start without a brain)
+    static HashMap<String, BoardRecord> readBrain(String brainLocation) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("data/" + brainLocation + ".ser"))) {
+            return readMemory(in);
+        }
+    }
+
     //Load the serialized memory from a file. If the file doesn't exist, create it.
     private void loadMemory() {
         try {
@@ -284,7 +384,7 @@ public class TicTacToeAI extends AbstractAI implements Serializable {
             if (varTmpDir.exists()) {
                 FileInputStream fileIn = new FileInputStream(varTmpDir);
                 ObjectInputStream in = new ObjectInputStream(fileIn);
-                longTermMemory = (HashMap<String, BoardRecord>) in.readObject();
+                longTermMemory = readMemory(in);
                 in.close();
                 fileIn.close();
             }
@@ -18,7 +18,7 @@ import java.io.IOException;
 /***********************************************************
  * A Tic-Tac-Toe game. The class game that we all know and love (er, hate?)
  ***********************************************************/
-public class TicTacToeGame implements Game {
+public class TicTacToeGame implements DeltaGame {
 	private char[] board; // An array of 9 elements - 'X','O',' ' - for the
 							// board.
 	private int turn; // Whose turn is it 0 or 1.
@@ -169,6 +169,27 @@ public class TicTacToeGame implements Game {
 		}
 	}
 
+	/**
+	 * Apply the move (a slot) of player p (see DeltaGame) - just the piece
+	 * is placed rather than the whole board being sent.
+	 **/
+	public synchronized boolean applyDelta(int p, String move) {
+		if (board == null)
+			return false; // No board to apply it to
+		try {
+			int slot = Integer.parseInt(move);
+			if (slot < 0 || slot >= board.length || board[slot] != ' ')
+				return false;
+			board[slot] = (p == 0) ? 'X' : 'O';
+			turn = p ^ 1;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (verbose > 0)
+			displayState();
+		return true;
+	}
+
 	/**
 	 * Display the current state. We'll use a text-based version here.
 	 **/
@@ -264,6 +285,30 @@ public class TicTacToeGame implements Game {
 		}
 	}
 
+	/**
+	 * Apply a move given directly as a slot (0-8) - used by DirectPlay for
+	 * offline games. Only the legality checks of processMove are done (no
+	 * String parsing or messages). Returns true if the move was made.
+	 **/
+	public boolean applyMove(int p, int slot) {
+		if (p != turn || slot < 0 || slot >= board.length || board[slot] != ' ')
+			return false;
+		board[slot] = (p == 0) ? 'X' : 'O';
+		turn ^= 1; // Switch turn from 0 to 1 or 1 to 0
+		changed = true;
+		computeWinner();
+		return true;
+	}
+
+	/**
+	 * Share the board of the given (server) game rather than receiving it as
+	 * a String through updateState. The board is not copied so this game
+	 * always sees the current state of the referee.
+	 **/
+	public synchronized void shareState(TicTacToeGame referee) {
+		this.board = referee.board;
+	}
+
 	/**
 	 * Is it current user's turn? Based on state information...
 	 **/
@@ -294,8 +339,13 @@ public class TicTacToeGame implements Game {
 		return winner;
 	}
 
+	/**
+	 * Player p resigns - due to forfeiting for example. Too much time or too
+	 * many wrong attempts in a row.
+	 **/
 	public synchronized void resign(int p) {
-		// TBD
+		winner = 1 - p; // Winner is the other player
+		done = true;
 	}
 
 	/**
@@ -0,0 +1,183 @@
+package cad.ai.game;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/***********************************************************
+ * Rolling-window training statistics for PlayGame.
+ *   Every interval games a sample is taken (games/sec, win/tie/loss rates
+ *   over the window, brain size, memory hit rate and heat of each AI) and
+ *   handed to a background writer thread which streams it to stdout and,
+ *   optionally, to a file.  The file is CSV if its name ends in ".csv" and
+ *   JSON lines otherwise.  The training loop itself only bumps counters.
+ ***********************************************************/
+public class TrainingTelemetry {
+    // One sample of the statistics (formatted by the writer thread)
+    private static class Sample {
+        long games;          // Total games played so far
+        double seconds;      // Seconds since the start of the run
+        double gamesPerSec;  // Over the window
+        int window;          // Games in the window
+        int homeWins, ties, awayWins;
+        int[] brainSize = new int[2];    // -1 if not known (not a TicTacToeAI)
+        int[] heat = new int[2];
+        double[] hitRate = new double[2];
+    }
+
+    private static final Sample END = new Sample();  // Tells the writer to stop
+
+    private final AI[] ai;
+    private final int interval;      // Games per window
+    private final boolean csv;       // Otherwise JSON lines
+    private final PrintWriter file;  // null if only writing to stdout
+    private final BlockingQueue<Sample> queue;
+    private final Thread writer;
+
+    private long games = 0;
+    private int homeWins = 0, ties = 0, awayWins = 0;  // In the current window
+    private final long start;
+    private long windowStart;
+    private long[] lookups = new long[2];  // Memory lookups/hits at the start of the window
+    private long[] hits = new long[2];
+
+    /**
+     * @param ai       The home and away AI (either may be null)
+     * @param interval Number of games per sample
+     * @param fileName File to stream to (null for stdout only)
+     * @param first    Games of the run already played (a resumed run: the file is appended to)
+     **/
+    public TrainingTelemetry(AI[] ai, int interval, String fileName, long first) throws IOException {
+        this.ai = ai;
+        this.interval = Math.max(1, interval);
+        this.csv = fileName != null && fileName.toLowerCase().endsWith(".csv");
+        this.file = (fileName == null) ? null : new PrintWriter(new FileWriter(fileName, first > 0));
+        this.queue = new LinkedBlockingQueue<Sample>();
+        this.games = first;
+        this.start = this.windowStart = System.nanoTime();
+        for (int p = 0; p < 2; p++) {
+            if (ai[p] instanceof TicTacToeAI) {
+                lookups[p] = ((TicTacToeAI) ai[p]).getMemoryLookups();
+                hits[p] = ((TicTacToeAI) ai[p]).getMemoryHits();
+            }
+        }
+        if (file != null && csv && first == 0)
+            file.println("games,seconds,games_per_sec,home_win_rate,tie_rate,away_win_rate," +
+                         "home_brain_size,home_hit_rate,home_heat,away_brain_size,away_hit_rate,away_heat");
+
+        writer = new Thread(this::write, "TrainingTelemetry");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Record the result of a game (0=Home, 1=Away, otherwise a tie).
+     **/
+    public void gamePlayed(int winner) {
+        games++;
+        if (winner == 0) homeWins++;
+        else if (winner == 1) awayWins++;
+        else ties++;
+        if (homeWins + ties + awayWins >= interval) sample();
+    }
+
+    /**
+     * Write out any partial window and wait for the writer to finish.
+     **/
+    public void close() {
+        if (homeWins + ties + awayWins > 0) sample();
+        queue.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) { }
+        if (file != null) file.close();
+    }
+
+    // Take a sample of the current window and start a new one.
+    private void sample() {
+        long now = System.nanoTime();
+        Sample s = new Sample();
+        s.games = games;
+        s.seconds = (now - start) / 1e9;
+        s.window = homeWins + ties + awayWins;
+        s.gamesPerSec = s.window / Math.max((now - windowStart) / 1e9, 1e-9);
+        s.homeWins = homeWins;
+        s.ties = ties;
+        s.awayWins = awayWins;
+        for (int p = 0; p < 2; p++) {
+            s.brainSize[p] = -1;
+            if (ai[p] instanceof TicTacToeAI) {
+                TicTacToeAI t = (TicTacToeAI) ai[p];
+                long l = t.getMemoryLookups(), h = t.getMemoryHits();
+                s.brainSize[p] = t.getBrainSize();
+                s.heat[p] = t.getHeat();
+                s.hitRate[p] = (l > lookups[p]) ? (double) (h - hits[p]) / (l - lookups[p]) : 0.0;
+                lookups[p] = l;
+                hits[p] = h;
+            }
+        }
+        queue.add(s);
+
+        homeWins = ties = awayWins = 0;
+        windowStart = now;
+    }
+
+    // The writer thread: format and output the samples as they arrive.
+    private void write() {
+        try {
+            while (true) {
+                Sample s = queue.take();
+                if (s == END) break;
+                System.out.println(String.format(Locale.ROOT,
+                    "STATS: games=%d %.0f games/sec H/T/A=%.3f/%.3f/%.3f brain=%s/%s hit=%.3f/%.3f heat=%s/%s",
+                    s.games, s.gamesPerSec, rate(s.homeWins, s), rate(s.ties, s), rate(s.awayWins, s),
+                    value(s.brainSize[0], s.brainSize[0]), value(s.brainSize[1], s.brainSize[1]),
+                    s.hitRate[0], s.hitRate[1],
+                    value(s.brainSize[0], s.heat[0]), value(s.brainSize[1], s.heat[1])));
+                if (file != null) {
+                    file.println(csv ? toCSV(s) : toJSON(s));
+                    file.flush();
+                }
+            }
+        } catch (InterruptedException e) { }
+    }
+
+    private static double rate(int count, Sample s) {
+        return (double) count / s.window;
+    }
+
+    // Value of an AI statistic - or "-" if the AI does not provide it
+    private static String value(int brainSize, int v) {
+        return brainSize < 0 ? "-" : Integer.toString(v);
+    }
+
+    private static String toCSV(Sample s) {
+        StringBuilder b = new StringBuilder();
+        b.append(s.games).append(',')
+            .append(String.format(Locale.ROOT, "%.3f,%.1f,%.4f,%.4f,%.4f", s.seconds, s.gamesPerSec,
+                                  rate(s.homeWins, s), rate(s.ties, s), rate(s.awayWins, s)));
+        for (int p = 0; p < 2; p++) {
+            if (s.brainSize[p] < 0) b.append(",,,");
+            else b.append(',').append(s.brainSize[p])
+                     .append(String.format(Locale.ROOT, ",%.4f,", s.hitRate[p])).append(s.heat[p]);
+        }
+        return b.toString();
+    }
+
+    private static String toJSON(Sample s) {
+        StringBuilder b = new StringBuilder();
+        b.append(String.format(Locale.ROOT,
+            "{\"games\":%d,\"seconds\":%.3f,\"games_per_sec\":%.1f,\"home_win_rate\":%.4f,\"tie_rate\":%.4f,\"away_win_rate\":%.4f",
+            s.games, s.seconds, s.gamesPerSec, rate(s.homeWins, s), rate(s.ties, s), rate(s.awayWins, s)));
+        String[] side = { "home", "away" };
+        for (int p = 0; p < 2; p++) {
+            if (s.brainSize[p] < 0) continue;
+            b.append(String.format(Locale.ROOT, ",\"%s_brain_size\":%d,\"%s_hit_rate\":%.4f,\"%s_heat\":%d",
+                                   side[p], s.brainSize[p], side[p], s.hitRate[p], side[p], s.heat[p]));
+        }
+        return b.append('}').toString();
+    }
+}
@@ -0,0 +1,280 @@
+package cad.ai.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/***********************************************************
+ * The binary wire protocol (negotiated with @PROTOCOL:BINARY, see
+ * ServerProtocol.txt).  Every message is a frame:
+ *     LENGTH (varint)  OPCODE (1 byte)  PAYLOAD (LENGTH-1 bytes)
+ * The messages are the same as in the text protocol - the frequent ones
+ * just have compact encodings (a tic-tac-toe board is 19 bits, the Nim
+ * heaps are varints) and anything else is sent as a TEXT frame.  So both
+ * ends translate between frames and the usual messages with encode and
+ * decode and nothing else changes.
+ ***********************************************************/
+public class BinaryProtocol {
+    public static final String HANDSHAKE = "@PROTOCOL:BINARY";  // Request (and acknowledgement)
+    public static final String DECLINED = "@PROTOCOL:TEXT";     // Server stays with text
+
+    // Opcodes
+    static final byte TEXT = 0x01;         // Any message: UTF-8 text (without the new line)
+    static final byte PING = 0x02;         // @PING
+    static final byte PONG = 0x03;         // @PONG
+    static final byte START = 0x10;        // @GAME:START:ROLE:NAME     role (0=H, 1=A), UTF-8 name
+    static final byte STATE_TTT = 0x11;    // @GAME:STATE:T,C0,...,C8   3 bytes: turn bit 18, 2 bits per slot
+    static final byte STATE_NIM = 0x12;    // @GAME:STATE:T,K,R0,...    turn byte, varint per row
+    static final byte STATE_TEXT = 0x13;   // @GAME:STATE:...           UTF-8 state (other games)
+    static final byte RESULT = 0x14;       // @GAME:RESULT:X            1 byte (H, A or T)
+    static final byte MESSAGE = 0x15;      // @GAME:MESSAGE:...         UTF-8 text
+    static final byte ERROR = 0x16;        // @GAME:ERROR:...           UTF-8 text
+    static final byte MOVE = 0x20;         // @GAME:MOVE:A[,B...]       varint per number
+
+    private static final String[] SLOT = { " ", "X", "O" };
+
+    /**
+     * Encode a (text protocol) message as a complete frame.
+     **/
+    public static byte[] encode(String message) {
+	ByteArrayOutputStream b = new ByteArrayOutputStream(16);
+	if (!encodeCompact(message, b)) {
+	    b.reset();
+	    b.write(TEXT);
+	    writeUTF8(b, message);
+	}
+	byte[] body = b.toByteArray();
+	ByteArrayOutputStream frame = new ByteArrayOutputStream(body.length + 2);
+	writeVarint(frame, body.length);
+	frame.write(body, 0, body.length);
+	return frame.toByteArray();
+    }
+
+    /**
+     * The total length (prefix included) of the frame starting at buf[offset]
+     * or -1 if the available bytes do not hold a complete frame yet.
+     **/
+    public static int frameLength(byte[] buf, int offset, int available) {
+	int length = 0, shift = 0, i = 0;
+	while (true) {
+	    if (i >= available || i > 4) return (i > 4) ? Integer.MAX_VALUE : -1;  // Incomplete (or absurd)
+	    int b = buf[offset + i++];
+	    length |= (b & 0x7f) << shift;
+	    if ((b & 0x80) == 0) break;
+	    shift += 7;
+	}
+	return (length + i <= available) ? length + i : -1;
+    }
+
+    /**
+     * Decode the complete frame at buf[offset] (see frameLength) into its message.
+     **/
+    public static String decode(byte[] buf, int offset) throws IOException {
+	int length = 0, shift = 0, i = offset;
+	int b;
+	do {
+	    b = buf[i++];
+	    length |= (b & 0x7f) << shift;
+	    shift += 7;
+	} while ((b & 0x80) != 0);
+	return decodeBody(buf, i, length);
+    }
+
+    /**
+     * Read one frame from the stream (blocking) and decode it.  Returns null at the end of the stream.
+     **/
+    public static String read(InputStream in) throws IOException {
+	int length = 0, shift = 0, b;
+	do {
+	    b = in.read();
+	    if (b < 0) {
+		if (shift == 0) return null;
+		throw new EOFException("Truncated frame.");
+	    }
+	    length |= (b & 0x7f) << shift;
+	    shift += 7;
+	} while ((b & 0x80) != 0);
+	byte[] body = new byte[length];
+	for (int n = 0; n < length; ) {
+	    int r = in.read(body, n, length - n);
+	    if (r < 0) throw new EOFException("Truncated frame.");
+	    n += r;
+	}
+	return decodeBody(body, 0, length);
+    }
+
+    // Encode the message compactly (if it has a compact form)
+    private static boolean encodeCompact(String message, ByteArrayOutputStream b) {
+	if (message.equals("@PING")) { b.write(PING); return true; }
+	if (message.equals("@PONG")) { b.write(PONG); return true; }
+	if (!message.startsWith("@GAME:")) return false;
+
+	String[] pieces = message.split(":", 3);
+	if (pieces.length < 3) return false;
+	String arg = pieces[2];
+	switch (pieces[1]) {
+	case "START":
+	    if (arg.length() < 2 || arg.charAt(1) != ':' || (arg.charAt(0) != 'H' && arg.charAt(0) != 'A')) return false;
+	    b.write(START);
+	    b.write(arg.charAt(0) == 'H' ? 0 : 1);
+	    writeUTF8(b, arg.substring(2));
+	    return true;
+	case "STATE":
+	    if (encodeTicTacToe(arg, b) || encodeNim(arg, b)) return true;
+	    b.reset();
+	    b.write(STATE_TEXT);
+	    writeUTF8(b, arg);
+	    return true;
+	case "RESULT":
+	    if (arg.length() != 1) return false;
+	    b.write(RESULT);
+	    b.write(arg.charAt(0));
+	    return true;
+	case "MESSAGE":
+	    b.write(MESSAGE);
+	    writeUTF8(b, arg);
+	    return true;
+	case "ERROR":
+	    b.write(ERROR);
+	    writeUTF8(b, arg);
+	    return true;
+	case "MOVE":
+	    int[] move = parseNumbers(arg);
+	    if (move == null) return false;
+	    b.write(MOVE);
+	    for (int v: move) writeVarint(b, v);
+	    return true;
+	default:
+	    return false;
+	}
+    }
+
+    // T,C0,...,C8 with T 0 or 1 and each C one of X, O or space
+    private static boolean encodeTicTacToe(String state, ByteArrayOutputStream b) {
+	if (state.length() != 19) return false;
+	char t = state.charAt(0);
+	if (t != '0' && t != '1') return false;
+	int bits = (t - '0') << 18;
+	for (int i = 0; i < 9; i++) {
+	    if (state.charAt(2 * i + 1) != ',') return false;
+	    char c = state.charAt(2 * i + 2);
+	    int v = (c == ' ') ? 0 : (c == 'X') ? 1 : (c == 'O') ? 2 : -1;
+	    if (v < 0) return false;
+	    bits |= v << (2 * i);
+	}
+	b.write(STATE_TTT);
+	b.write(bits >>> 16);
+	b.write(bits >>> 8);
+	b.write(bits);
+	return true;
+    }
+
+    // T,K,R0,...,R(K-1) - all non-negative integers, T 0 or 1
+    private static boolean encodeNim(String state, ByteArrayOutputStream b) {
+	int[] v = parseNumbers(state);
+	if (v == null || v.length < 2 || v[0] > 1 || v[1] != v.length - 2) return false;
+	b.write(STATE_NIM);
+	b.write(v[0]);
+	for (int i = 2; i < v.length; i++) writeVarint(b, v[i]);
+	return true;
+    }
+
+    // Comma separated non-negative integers (exactly as Integer.toString writes them), null otherwise
+    private static int[] parseNumbers(String s) {
+	String[] f = s.split(",", -1);
+	int[] v = new int[f.length];
+	try {
+	    for (int i = 0; i < f.length; i++) {
+		v[i] = Integer.parseInt(f[i]);
+		if (v[i] < 0 || !Integer.toString(v[i]).equals(f[i])) return null;
+	    }
+	} catch (NumberFormatException e) {
+	    return null;
+	}
+	return v;
+    }
+
+    private static String decodeBody(byte[] buf, int offset, int length) throws IOException {
+	if (length < 1) throw new IOException("Empty frame.");
+	int end = offset + length;
+	int p = offset + 1;
+	int payload = length - 1;
+	switch (buf[offset]) {
+	case TEXT: return utf8(buf, p, end);
+	case PING: return "@PING";
+	case PONG: return "@PONG";
+	case START:
+	    need(payload >= 1);
+	    return "@GAME:START:" + (buf[p] == 0 ? 'H' : 'A') + ":" + utf8(buf, p + 1, end);
+	case STATE_TTT: {
+	    need(payload == 3);
+	    int bits = ((buf[p] & 0xff) << 16) | ((buf[p + 1] & 0xff) << 8) | (buf[p + 2] & 0xff);
+	    StringBuilder s = new StringBuilder("@GAME:STATE:").append((bits >>> 18) & 1);
+	    for (int i = 0; i < 9; i++) s.append(',').append(SLOT[Math.min(2, (bits >>> (2 * i)) & 3)]);
+	    return s.toString();
+	}
+	case STATE_NIM: {
+	    need(payload >= 1);
+	    StringBuilder rows = new StringBuilder();
+	    int k = 0;
+	    int[] pos = { p + 1 };
+	    while (pos[0] < end) {
+		rows.append(',').append(readVarint(buf, pos, end));
+		k++;
+	    }
+	    return "@GAME:STATE:" + buf[p] + "," + k + rows;
+	}
+	case STATE_TEXT: return "@GAME:STATE:" + utf8(buf, p, end);
+	case RESULT:
+	    need(payload == 1);
+	    return "@GAME:RESULT:" + (char) buf[p];
+	case MESSAGE: return "@GAME:MESSAGE:" + utf8(buf, p, end);
+	case ERROR: return "@GAME:ERROR:" + utf8(buf, p, end);
+	case MOVE: {
+	    StringBuilder s = new StringBuilder("@GAME:MOVE:");
+	    int[] pos = { p };
+	    while (pos[0] < end) {
+		if (pos[0] > p) s.append(',');
+		s.append(readVarint(buf, pos, end));
+	    }
+	    return s.toString();
+	}
+	default:
+	    throw new IOException("Unknown opcode " + buf[offset]);
+	}
+    }
+
+    private static void need(boolean wellFormed) throws IOException {
+	if (!wellFormed) throw new IOException("Malformed frame.");
+    }
+
+    private static void writeVarint(ByteArrayOutputStream b, int v) {
+	while ((v & ~0x7f) != 0) {
+	    b.write((v & 0x7f) | 0x80);
+	    v >>>= 7;
+	}
+	b.write(v);
+    }
+
+    private static int readVarint(byte[] buf, int[] pos, int end) throws IOException {
+	int v = 0, shift = 0, b;
+	do {
+	    need(pos[0] < end && shift < 35);
+	    b = buf[pos[0]++];
+	    v |= (b & 0x7f) << shift;
+	    shift += 7;
+	} while ((b & 0x80) != 0);
+	return v;
+    }
+
+    private static void writeUTF8(ByteArrayOutputStream b, String s) {
+	byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+	b.write(bytes, 0, bytes.length);
+    }
+
+    private static String utf8(byte[] buf, int from, int to) {
+	return new String(buf, from, to - from, StandardCharsets.UTF_8);
+    }
+}
@@ -19,24 +19,39 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /************************************************************
  * The ClientConnection represents a single connection to a client.
  * It primarily acts as the communication.  Passing information to client
  * and processing responses.
+ * It is either polled by its own thread (call) or, in blocking mode
+ * (startBlocking), served by a reader thread blocking in readLine and a
+ * paired writer thread blocking on the outbound queue.
+ * A client that lets more than MAX_PENDING messages pile up is closed.
  ***********************************************************/
-public class ClientConnection implements Callable<Integer> {
+public class ClientConnection implements Callable<Integer>, ServerConnection {
     private PrintWriter out = null;   // TO the client
     private BufferedReader in = null;  // FROM the client
     private Socket sock = null;        // The client socket itself
-    private Player player = null;           // The player
     private Deque<String> messages;    // Messages to transmit to client
-    private GameServer server = null;  // The game server
+    private ProtocolHandler handler;   // Processes the commands received
+    private volatile BlockingQueue<String> outbox = null;  // Messages for the writer thread (blocking mode only)
+    private static final String END = new String("");  // Tells the writer thread to stop
+    private static final long CLOSE_MILLIS = 5000;     // Most the writer thread may take to write what is left
+    private GameServer server;         // Informed when the connection closes
+    private volatile long lastRead = System.nanoTime();  // When the client last sent something
+    private final AtomicBoolean overflowed = new AtomicBoolean(false);  // More than MAX_PENDING were queued
     
     ClientConnection(Socket sock, GameServer server) throws IOException {
 	this.sock = sock;
 	this.server = server;
+	this.handler = server.newHandler(this);
 	this.out = new PrintWriter(sock.getOutputStream());
 	this.in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
 	this.messages = new ArrayDeque<String>();
@@ -60,6 +75,11 @@ public class ClientConnection implements Callable<Integer> {
     synchronized private void debug(String message) {
 	System.out.println("DEBUG: " + header() + message);
     }
+
+    public String toString() {
+	Socket s = sock;
+	return s == null ? "Client (closed)" : "Client (" + s.getInetAddress() + ":" + s.getPort() + ")";
+    }
     
     /**
      * Run the thread.
@@ -71,7 +91,7 @@ public class ClientConnection implements Callable<Integer> {
 	    try {
 		processInput();
 		transmitMessages();
-		Thread.sleep(100);  // Can't run super fast!
+		Thread.sleep(100);  // Can't run super fast! (but all the input is processed)
 	    }
 	    catch (InterruptedException e) { }
 	    catch (IOException e) {
@@ -83,305 +103,199 @@ public class ClientConnection implements Callable<Integer> {
     }
 
     /**
-     * Close the connection (can also be used to stop the thread)
+     * Serve the connection with blocking I/O (instead of call): a reader and
+     * a writer task are run by the given executor (e.g. on virtual threads).
      **/
-    public synchronized void close() {
+    public synchronized void startBlocking(Executor threads) {
+	BlockingQueue<String> queue = new LinkedBlockingQueue<String>(MAX_PENDING);
+	while (!messages.isEmpty()) queue.add(messages.removeFirst());
+	outbox = queue;  // Only now: messages posted from here on go after those
+	threads.execute(this::writeLoop);
+	threads.execute(this::readLoop);
+    }
+
+    // Blocking mode: process each line as soon as it arrives.
+    private void readLoop() {
+	BufferedReader reader = in;
 	try {
-	    if (player != null && player.getConnection() == this) player.setConnection(null);
-	    if (in != null) in.close();
-	    if (out != null) out.close();
-	    if (sock != null) sock.close();
+	    String message;
+	    while (reader != null && (message = reader.readLine()) != null) {
+		lastRead = System.nanoTime();
+		handler.processInput(message);
+	    }
 	} catch (IOException e) {
-	    debug("Error trying to close client connection: " + e.getMessage());
-	} finally {
-	    in = null; out = null; sock = null;
-	}		
+	    // Connection lost (or closed)
+	}
+	close();
     }
 
-    /**
-     * Post a message to be transmitted to the Client (done next chance by Client Thread)
-     **/
-    public synchronized void postMessage(String message) {
-	messages.addLast(message);   // Store the message in the messages Queue.
+    // Blocking mode: transmit the messages as soon as they are posted.
+    // At END (see close) whatever came before has been written: close the socket.
+    private void writeLoop() {
+	PrintWriter writer = out;
+	try {
+	    while (writer != null) {
+		String m = outbox.take();
+		if (m == END) {
+		    writer.close();  // Flushes and closes the socket (the reader thread stops too)
+		    return;
+		}
+		writer.print(m);
+		if (outbox.isEmpty()) {
+		    writer.flush();  // Only once whatever was queued is written
+		    if (writer.checkError()) break;
+		}
+	    }
+	} catch (InterruptedException e) { }
+	close(true);
     }
 
     /**
-     * Post a message to be transmitted to the Client (done next chance by Client Thread)
-     * This also appends a new line to end of message.
+     * Close the connection (can also be used to stop the thread)
+     * Only marking it closed is done under the lock: the handler is detached
+     * (and the socket closed) after, as a reader thread may be holding the
+     * handler's lock while it posts a message.
+     * In blocking mode the writer thread first writes the messages still
+     * queued and then closes the socket (within CLOSE_MILLIS).
      **/
-    public synchronized void postMessageLn(String message) {
-	messages.addLast(message + "\n");   // Store the message in the messages Queue.
+    public void close() {
+	close(false);
     }
 
-    /**
-     * Transmit (all) messages in the Queue.
-     **/
-    private synchronized void transmitMessages() throws IOException {
-	while (!messages.isEmpty()) {
-	    String m = messages.removeFirst();
-	    out.print(m);
+    // Close the connection: right away if now (or the outbox is full),
+    // else after the messages still queued.
+    private void close(boolean now) {
+	Socket sock;
+	BufferedReader in;
+	PrintWriter out;
+	String who;
+	boolean drain = false;  // The writer thread closes the socket
+	synchronized (this) {
+	    if (this.sock == null) return;  // Already closed
+	    if (outbox != null) drain = outbox.offer(END) && !now;  // If it is full, closing the socket stops the writer
+	    else {
+		try {
+		    transmitMessages();  // Whatever is still queued (e.g. why it is closed)
+		} catch (IOException e) {
+		    // Closing anyway
+		}
+	    }
+	    who = header();
+	    sock = this.sock; in = this.in; out = this.out;
+	    this.in = null; this.out = null; this.sock = null;
 	}
-	out.flush();
-    }
-  
-    /**
-     * Get and process the input on the input stream
-     **/
-    private void processInput()	throws IOException {
-	if (!in.ready()) return;  // No input ready to process
-	
-	// We'll process only ONE action per frame - the rest are just QUEUED
-	// Of course, we could take all requests or just a few requests.
-	// This is to prevent some BOT from generating LOTS of action requests.
-	String message = in.readLine();
-
-	if (message == null) {
-	    // End of transmission
-	    close();
+	server.removeConnection(this);
+	handler.detach();
+	if (drain) {
+	    // Unless the client does not read: then it is closed anyway
+	    server.getExecutors().scheduler().schedule(() -> closeSocket(who, sock, in, out),
+						       CLOSE_MILLIS, TimeUnit.MILLISECONDS);
 	} else {
-	    // A message was provided.  Process this input message
-	    processInput(message);
+	    closeSocket(who, sock, in, out);
 	}
     }
 
-    /**
-     * Process the message provided.  Uses protocol described in ServerProtocol.txt
-     **/
-    synchronized private void processInput(String message) {
+    private static void closeSocket(String who, Socket sock, BufferedReader in, PrintWriter out) {
 	try {
-	    String[] pieces = message.split(":", 5);
-	    String command = pieces[0].toUpperCase();
-	    switch (command) {
-	    case "@TOUR": processTournamentCommands(pieces); break;
-	    case "@NEW PLAYER": setNewPlayer(); break;
-	    case "@PLAYER": setPlayer(pieces); break;
-	    case "@NAME": setName(pieces); break;
-	    case "@GAME": processGameCommands(pieces); break;
-	    case "@GET NAME": getName(pieces); break;
-	    case "@PING": postMessageLn("@PONG"); break;
-	    case "@PONG": break; // Ignore it for now...
-	    default: postMessageLn("@ERROR:Unrecognized command.");
-	    }
-	} catch (Exception e) {
-	    postMessageLn("@ERROR:Error processing command.");
-	    debug(e.getMessage());
-	}
-    }
-
-    /**
-     * Process the various tournament commands outlined in ServerProtocol.
-     * Use pieces[1...]  -- skipping pieces[0] which is @TOUR
-     **/
-    private void processTournamentCommands(String[] pieces) {
-	if (pieces.length < 2) {
-	    postMessageLn("@ERROR:A subcommand is required for TOUR.");
-	    return;
-	}
-	String command = pieces[1].toUpperCase();
-	switch (command) {
-	case "CREATE": createTournament(pieces); break;
-	case "START": startTournament(); break;
-	case "PAUSE": pauseTournament(); break;
-	case "END": endTournament(); break;
-	case "REPORT": reportTournament(); break;
-	case "MATCHES LEFT": matchesLeftTournament(); break;
-	case "JOIN":  joinTournament(pieces); break;
-	default: postMessageLn("@ERROR:Unrecognized TOUR sub-command.");
+	    sock.close();  // First: unblocks a reader thread
+	    in.close();
+	    out.close();
+	} catch (IOException e) {
+	    System.out.println("DEBUG: " + who + "Error trying to close client connection: " + e.getMessage());
 	}
     }
 
     /**
-     * Create a tournament with game type TYPE pieces[2] (passed as a string to GameServer).
-     * ID # is returned back to sender - for people to join.
+     * Post a message to be transmitted to the Client (done next chance by Client Thread)
      **/
-    private void createTournament(String[] pieces) {
-	if (pieces.length < 3) {
-	    postMessageLn("@ERROR:A TYPE must be specified.");
-	    return;
-	}
-	if (player == null) {
-	    postMessageLn("@ERROR:No player set yet (to own the command).");
-	    return;
-	}
-	RRTournament rr = server.createTournament(pieces[2], player);
-	if (rr == null) {
-	    postMessageLn("@ERROR:Type not recognized.");
-	} else {
-	    postMessageLn("@TID:" + rr.getID());
-	}
-    }
-
-    private void startTournament() {
-	RRTournament tour = verifyTourOwner();
-	if (tour != null) tour.setActive(true);
+    public void postMessage(String message) {
+	enqueue(message);
     }
 
-    private void pauseTournament() {
-	RRTournament tour = verifyTourOwner();
-	if (tour != null) tour.setActive(false);
-    }
+    public long getLastRead() { return lastRead; }
 
-    private void endTournament() {
-	RRTournament tour = verifyTourOwner();
-	if (tour != null) tour.terminate();
-    }
-
-    private void reportTournament() {
-	RRTournament tour = verifyTourOwner();
-	if (tour != null)
-	    postMessageLn("@REPORT:" + tour.report());
-    }
-
-    private void matchesLeftTournament() {
-	RRTournament tour = verifyTourOwner();
-	if (tour != null)
-	    postMessageLn("@MESSAGE: There are " + tour.matchesLeft() + " matches left to complete.");
+    public int pendingMessages() {
+	BlockingQueue<String> outbox = this.outbox;
+	return (outbox != null) ? outbox.size() : messages.size();  // Only an estimate for polled connections
     }
 
     /**
-     * Helper function to get player's tournament (IF they are owner)
-     *    Reports error if not available (and returns null)
+     * Only the NIO core speaks the binary protocol.
      **/
-    private RRTournament verifyTourOwner() {
-	if (player == null) {
-	    postMessageLn("@ERROR:No player set yet (to own the command).");
-	    return null;
-	}
+    public boolean useBinary() { return false; }
 
-	// Is this player the CREATOR of the Tournament?
-	RRTournament tour = player.getTour();
-	if (tour == null) {
-	    postMessageLn("@ERROR:Player is not attached to a tournament.");
-	    return null;
-	} else if (!tour.isOwner(player)) {
-	    postMessageLn("@ERROR:Player is not the owner of the tournament.");
-	    return null;
-	} else {
-	    return tour;
-	}
-    }
-    
     /**
-     * Join a tournament with given ID (pieces[1])
+     * Post a message to be transmitted to the Client (done next chance by Client Thread)
+     * This also appends a new line to end of message.
      **/
-    private void joinTournament(String[] pieces) {
-	if (player == null) {
-	    postMessageLn("@ERROR:No player set yet (to own the command).");
-	    return;
-	}
-
-	if (player.getTour() != null) {
-	    postMessageLn("@ERROR:Player already assigned to a tournament.");
-	    return;
-	}
-	
-	// Join a tournament
-	int id = -1;  // Negative IDs not allowed --- sentinel value.
-	if (pieces.length > 2) {
-	    id = Integer.parseInt(pieces[1]);
-	}
-	
-	int tid = server.joinTournament(player, id);
-	if (tid >= 0)
-	    postMessageLn("@MESSAGE:Tournament " + tid + " successfully joined.");
-	else
-	    postMessageLn("@ERROR:Failed to join a tournament.");
+    public void postMessageLn(String message) {
+	enqueue(message + "\n");
     }
-    
-    /**
-     * Register a NEW player.
-     **/
-    private void setNewPlayer() {
-	// This client is a new player
-	if (player != null) {
-	    // Player already registered
-	    postMessageLn("@ERROR:Player already registered for this account.");
-	} else {
-	    player = server.registerPlayer();
-	    player.setConnection(this);  // So, Player can communicate with Client
-	    postMessageLn("@PID:"+player.getID());
+
+    // Queue the message: without a lock in blocking mode (the writer thread's
+    // queue is concurrent), else in the messages Queue.
+    private void enqueue(String message) {
+	BlockingQueue<String> outbox = this.outbox;
+	if (outbox == null) {
+	    synchronized (this) {
+		outbox = this.outbox;
+		if (outbox == null) {
+		    if (messages.size() >= MAX_PENDING) overflow();
+		    else messages.addLast(message);   // Store the message in the messages Queue.
+		    return;
+		}
+	    }
 	}
+	if (!outbox.offer(message)) overflow();
     }
-    
-    /**
-     * Set player using given ID (pieces[1]).
-     **/
-    private void setPlayer(String[] pieces) {
-	// This client is a returning player
-	if (pieces.length < 2) {
-	    postMessageLn("@ERROR:ID.  An ID is required for PLAYER.");
-	    return;
-	}
-	int id = Integer.parseInt(pieces[1]);
-	Player p = server.getPlayer(id);
-	if (p == null) {
-	    postMessageLn("@ERROR:ID was not recognized.");
-	} else if (p.getConnection() != null) {
-	    postMessageLn("@ERROR:Player already connected to another client.");
-	} else {
-	    player = p;
-	    player.setConnection(this);   // So, Player can communicate with Client
-	    postMessageLn("@PID:"+player.getID());
-	}
+
+    // The client is not reading what it is sent: close it (on another
+    // thread, as the poster may be holding a match or tournament lock).
+    private void overflow() {
+	if (!overflowed.compareAndSet(false, true)) return;
+	if (server.getStats() != null) server.getStats().connectionOverflowed();
+	server.getExecutors().scheduler().execute(() -> close(true));
     }
-    
+
     /**
-     * Set the Player's name to pieces[1]
+     * Post a message shared with other connections (the same line is queued).
      **/
-    private void setName(String[] pieces) {
-	if (player == null) {
-	    postMessageLn("@ERROR:No player set yet.");
-	} else if (pieces.length < 2) {
-	    postMessageLn("@ERROR:A NAME is required.");
-	} else {
-	    player.setName(pieces[1]);
-	}
+    public void postShared(SharedMessage message) {
+	postMessage(message.line());
     }
 
     /**
-     * Get the Player's name with given ID pieces[1]
+     * Transmit (all) messages in the Queue.
      **/
-    private void getName(String[] pieces) {
-	if (pieces.length < 2) {
-	    postMessageLn("@ERROR:An ID is required.");
-	} else {
-	    try {
-		int id = Integer.parseInt(pieces[1]);
-		Player p = server.getPlayer(id);
-		if (p == null) {
-		    postMessageLn("@ERROR:ID was not recognized.");
-		} else {
-		    postMessageLn("@NAME:" + p.getName() + ":" + id);
-		}
-	    } catch (NumberFormatException e) {
-		postMessageLn("@ERROR:Error parsing ID: " + pieces[1]);
-	    }
+    private synchronized void transmitMessages() throws IOException {
+	if (out == null) return;  // Closed
+	while (!messages.isEmpty()) {
+	    String m = messages.removeFirst();
+	    out.print(m);
 	}
+	out.flush();
+	if (out.checkError()) throw new IOException("Could not write to the client.");
     }
-    
-    
+  
     /**
-     * Send a game "move" message to player's current match...
+     * Get and process the input on the input stream
      **/
-    private void processGameCommands(String[] pieces) {
-	if (pieces.length < 2) {
-	    postMessageLn("@ERROR:A subcommand is required for GAME.");
-	    return;
-	}
-	if (player == null) {
-	    postMessageLn("@ERROR:No player set yet.");
-	    return;
-	}
-	Match m = player.getMatch();
-	if (m == null) {
-	    postMessageLn("@ERROR:Player is not playing in a match currently.");
-	    return;
-	}
+    private void processInput()	throws IOException {
+	// Process ALL the lines available (a handshake or a burst of moves is
+	// handled in one pass).  A BOT generating LOTS of action requests is
+	// held back by the handler's rate limiter instead.
+	BufferedReader in;
+	while ((in = this.in) != null && in.ready()) {
+	    String message = in.readLine();
+	    lastRead = System.nanoTime();
 
-	String command = pieces[1].toUpperCase();
-	switch (command) {
-	case "MOVE": m.postMessage(player, pieces[2]); break;
-	default: postMessageLn("@ERROR:Unrecognized GAME sub-command.");
+	    if (message == null) {
+		// End of transmission
+		close();
+	    } else {
+		// A message was provided.  Process this input message
+		handler.processInput(message);
+	    }
 	}
     }
 }
@@ -0,0 +1,245 @@
+package cad.ai.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/***********************************************************
+ * Spreads the tournaments of an event over several GameServers (workers)
+ * - each its own process, possibly on its own machine - behind one
+ * address.  The coordinator hosts nothing itself: a client connecting to
+ * it is sent to the right worker (@REDIRECT) by its first command that
+ * needs one:
+ *   @PLAYER:ID     - the worker the player is on
+ *   @TOUR:JOIN:ID  - the worker the tournament is on
+ *   @TOUR:JOIN     - the worker with the first tournament taking players
+ *   @TOUR:CREATE   - the least loaded worker
+ * The client then does its handshake again there (see ServerProtocol.txt).
+ * Each worker hands out IDs from its own base (--idbase) so the ID alone
+ * tells which worker it belongs to.
+ * The coordinator polls every worker each second for its tournaments
+ * (@TOURS) and the tallies of their players (@TALLIES), from which it
+ * routes the clients and puts together the standings of the whole event.
+ * It polls on a thread of its own: a worker may take TIMEOUT_MILLIS to
+ * answer, which must not hold up the server's scheduler (the reaper, the
+ * results pushed to subscribers, ...).
+ * A worker that cannot be reached is tried again at the next poll;
+ * meanwhile nobody is sent to it.
+ ***********************************************************/
+class Coordinator {
+    private static final long POLL_MILLIS = 1000;   // How often the workers are polled
+    private static final int TIMEOUT_MILLIS = 2000; // Most a worker may take to answer (or to connect)
+
+    // A worker and what it was hosting at the last poll
+    private static class Worker {
+	final String host;
+	final int port;
+	int base = -1;                  // First ID of the worker (-1 until known)
+	Socket sock = null;             // The link to the worker (null while down)
+	BufferedReader in = null;
+	PrintWriter out = null;
+	String[] tours = new String[0]; // TID/TYPE/PLAYERS/LEFT/STATE (see @TOURS)
+	List<int[]> tallies = Collections.emptyList();  // {TID, ID, SCORE, W, L, T}
+	int players = 0;                // Players hosted (at the last poll)
+	int sent = 0;                   // Clients sent here since the last poll
+
+	Worker(String host, int port) { this.host = host; this.port = port; }
+
+	int load() { return tours.length + players + sent; }
+	boolean isUp() { return sock != null && base >= 0; }
+	String address() { return host + ":" + port; }
+    }
+
+    private final ArrayList<Worker> workers = new ArrayList<Worker>();
+    private List<int[]> standings = Collections.emptyList();  // All the tallies, best first
+
+    /**
+     * @param addresses The workers: HOST:PORT,...
+     **/
+    Coordinator(String addresses) {
+	for (String a: addresses.split(",")) {
+	    String[] hp = a.trim().split(":");
+	    if (hp.length != 2) throw new IllegalArgumentException("A worker is HOST:PORT: " + a);
+	    workers.add(new Worker(hp[0], Integer.parseInt(hp[1])));
+	}
+    }
+
+    /**
+     * Poll the workers from now on (on a daemon thread of its own).
+     **/
+    void start() {
+	ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+	    Thread t = new Thread(r, "coordinator");
+	    t.setDaemon(true);
+	    return t;
+	});
+	poller.scheduleWithFixedDelay(this::poll, 0, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Ask every worker what it hosts (connecting to the ones that are down).
+    private void poll() {
+	ArrayList<int[]> all = new ArrayList<int[]>();
+	for (Worker w: workers) {
+	    try {
+		if (w.sock == null) connect(w);
+		String[] tours = list(request(w, "@TOURS"));
+		ArrayList<int[]> tallies = new ArrayList<int[]>();
+		for (String t: list(request(w, "@TALLIES"))) {
+		    String[] f = t.split("/");
+		    int[] tally = new int[f.length];
+		    for (int i = 0; i < f.length; i++) tally[i] = Integer.parseInt(f[i]);
+		    tallies.add(tally);
+		}
+		synchronized (this) {
+		    w.tours = tours;
+		    w.tallies = tallies;
+		    w.players = tallies.size();
+		    w.sent = 0;
+		}
+	    } catch (Exception e) {
+		if (w.sock != null) System.err.println("Coordinator: lost worker " + w.address() + " (" + e.getMessage() + ")");
+		disconnect(w);
+	    }
+	    synchronized (this) {
+		all.addAll(w.tallies);
+	    }
+	}
+	all.sort((a, b) -> (a[2] != b[2]) ? b[2] - a[2] : (a[3] != b[3]) ? b[3] - a[3] : a[1] - b[1]);
+	synchronized (this) {
+	    standings = all;
+	}
+    }
+
+    private void connect(Worker w) throws IOException {
+	Socket sock = new Socket();
+	sock.connect(new InetSocketAddress(w.host, w.port), TIMEOUT_MILLIS);
+	sock.setSoTimeout(TIMEOUT_MILLIS);
+	sock.setTcpNoDelay(true);
+	w.sock = sock;
+	w.in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+	w.out = new PrintWriter(sock.getOutputStream(), true);
+	int base = Integer.parseInt(request(w, "@IDBASE"));
+	synchronized (this) {
+	    w.base = base;
+	}
+	System.out.println("Coordinator: worker " + w.address() + " is up (IDs from " + base + ").");
+    }
+
+    private synchronized void disconnect(Worker w) {
+	try {
+	    if (w.sock != null) w.sock.close();
+	} catch (IOException e) {
+	    // Closed anyway
+	}
+	w.sock = null;
+	w.in = null;
+	w.out = null;
+	w.tours = new String[0];
+	w.tallies = Collections.emptyList();
+	w.players = 0;
+    }
+
+    // Send the worker the command and return its answer (what follows COMMAND: in the response).
+    private static String request(Worker w, String command) throws IOException {
+	w.out.println(command);
+	while (true) {
+	    String line = w.in.readLine();
+	    if (line == null) throw new IOException("Connection closed");
+	    if (line.startsWith(command + ":")) return line.substring(command.length() + 1);
+	    if (line.equals("@PING")) w.out.println("@PONG");
+	    else if (line.startsWith("@ERROR")) throw new IOException(line);
+	}
+    }
+
+    private static String[] list(String csv) {
+	return csv.isEmpty() ? new String[0] : csv.split(",");
+    }
+
+    /**
+     * The worker that player (or tournament) id is on - the one with the
+     * highest base not above it - or null if no worker up has it.
+     **/
+    synchronized String workerFor(int id) {
+	Worker best = null;
+	for (Worker w: workers)
+	    if (w.isUp() && w.base < id && (best == null || w.base > best.base)) best = w;
+	return (best == null) ? null : best.address();
+    }
+
+    /**
+     * The worker for a new tournament: the least loaded one - the fewest
+     * tournaments and players (counting the clients sent to it since the
+     * last poll).
+     **/
+    synchronized String workerForCreate() {
+	Worker best = null;
+	for (Worker w: workers)
+	    if (w.isUp() && (best == null || w.load() < best.load())) best = w;
+	if (best == null) return null;
+	best.sent++;
+	return best.address();
+    }
+
+    /**
+     * The worker for a player joining any tournament: the one with the
+     * first tournament (lowest ID) that takes players (waiting or active).
+     **/
+    synchronized String workerForJoin() {
+	Worker best = null;
+	int first = Integer.MAX_VALUE;
+	for (Worker w: workers) {
+	    if (!w.isUp()) continue;
+	    for (String t: w.tours) {
+		String[] f = t.split("/");
+		int tid = Integer.parseInt(f[0]);
+		if ((f[4].equals("W") || f[4].equals("A")) && tid < first) {
+		    first = tid;
+		    best = w;
+		}
+	    }
+	}
+	if (best == null) return null;
+	best.sent++;
+	return best.address();
+    }
+
+    /**
+     * One page (1, 2, ...) of the standings of every player of every
+     * tournament on every worker, as @TOUR:STANDINGS.  As of the last poll.
+     **/
+    synchronized String standings(int page, int size) {
+	size = Math.max(1, Math.min(size, Tournament.MAX_PAGE_SIZE));
+	int pages = Math.max(1, (standings.size() + size - 1) / size);
+	page = Math.max(1, Math.min(page, pages));
+	StringBuilder result = new StringBuilder().append(page).append(':').append(pages).append(':');
+	for (int i = (page - 1) * size; i < Math.min(standings.size(), page * size); i++) {
+	    int[] t = standings.get(i);
+	    if (i > (page - 1) * size) result.append(',');
+	    result.append(i + 1).append('/').append(t[1]).append('/').append(t[2]).append('/')
+		.append(t[3]).append('/').append(t[4]).append('/').append(t[5]);
+	}
+	return result.toString();
+    }
+
+    /**
+     * The workers: HOST/PORT/BASE/UP/TOURNAMENTS/PLAYERS,...  (UP is U or D)
+     **/
+    synchronized String cluster() {
+	StringBuilder result = new StringBuilder();
+	for (Worker w: workers) {
+	    if (result.length() > 0) result.append(',');
+	    result.append(w.host).append('/').append(w.port).append('/').append(w.base).append('/')
+		.append(w.isUp() ? 'U' : 'D').append('/').append(w.tours.length).append('/').append(w.players);
+	}
+	return result.toString();
+    }
+}
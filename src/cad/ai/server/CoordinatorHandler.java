@@ -0,0 +1,69 @@
+package cad.ai.server;
+
+/************************************************************
+ * Processes the commands of a client connected to a coordinator (see
+ * Coordinator): the handshake is accepted until a command says which
+ * worker the client belongs on, to which it is then redirected.  Only
+ * the event wide commands (@TOUR:STANDINGS, @CLUSTER) and the ones about
+ * the server itself are answered here.
+ ***********************************************************/
+class CoordinatorHandler extends ProtocolHandler {
+    private Coordinator coordinator;
+
+    CoordinatorHandler(GameServer server, ServerConnection conn, Coordinator coordinator) {
+	super(server, conn);
+	this.coordinator = coordinator;
+    }
+
+    void processCommand(String command, String[] pieces) {
+	switch (command) {
+	case "@NEW PLAYER":
+	case "@NAME":
+	    break;  // Done again on the worker
+	case "@PLAYER":
+	    if (pieces.length < 2) postMessageLn("@ERROR:ID.  An ID is required for PLAYER.");
+	    else redirect(coordinator.workerFor(Integer.parseInt(pieces[1])), "@ERROR:ID was not recognized.");
+	    break;
+	case "@TOUR": processTournamentCommands(pieces); break;
+	case "@CLUSTER": postMessageLn("@CLUSTER:" + coordinator.cluster()); break;
+	case "@WATCH":
+	    // A tournament (or match) is watched on its worker
+	    if (pieces.length > 2 && !pieces[1].equalsIgnoreCase("ALL"))
+		redirect(coordinator.workerFor(Integer.parseInt(pieces[2])), "@ERROR:Tournament not found.");
+	    else
+		postMessageLn("@ERROR:Watch a tournament (or match) of a worker: there is no ALL on the coordinator.");
+	    break;
+	case "@PING":
+	case "@PONG":
+	case "@POOLS":
+	case "@CONNECTIONS":
+	case "@STATS":
+	case "@PROTOCOL":
+	    super.processCommand(command, pieces);
+	    break;
+	default: postMessageLn("@ERROR:Not available on the coordinator (create or join a tournament first).");
+	}
+    }
+
+    private void processTournamentCommands(String[] pieces) {
+	String command = (pieces.length < 2) ? "" : pieces[1].toUpperCase();
+	switch (command) {
+	case "CREATE": redirect(coordinator.workerForCreate(), "@ERROR:No worker available."); break;
+	case "JOIN":
+	    if (pieces.length > 2) redirect(coordinator.workerFor(Integer.parseInt(pieces[2])), "@ERROR:Failed to join a tournament.");
+	    else redirect(coordinator.workerForJoin(), "@ERROR:Failed to join a tournament.");
+	    break;
+	case "STANDINGS":
+	    int page = (pieces.length > 2) ? Integer.parseInt(pieces[2]) : 1;
+	    int size = (pieces.length > 3) ? Integer.parseInt(pieces[3]) : Tournament.DEFAULT_PAGE_SIZE;
+	    postMessageLn("@STANDINGS:" + coordinator.standings(page, size));
+	    break;
+	default: postMessageLn("@ERROR:Not available on the coordinator (create or join a tournament first).");
+	}
+    }
+
+    // Send the client to the worker (HOST:PORT) - or the error if there is none.
+    private void redirect(String worker, String error) {
+	postMessageLn(worker != null ? "@REDIRECT:" + worker : error);
+    }
+}
@@ -18,4 +18,11 @@ import cad.ai.game.*;
  ***********************************************************/
 public interface GameFactory {
     public Game newGame();
+
+    /**
+     * Create the client side copy of a game (for player p: 0=Home, 1=Away)
+     * played by the given AI without any output.  Used for in-process clients.
+     * Returns null if the game has no client side version.
+     **/
+    public Game newClientGame(int p, AI ai);
 }
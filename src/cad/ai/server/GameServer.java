@@ -14,13 +14,20 @@ package cad.ai.server;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
-import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /***********************************************************
  * The GameServer represents the main server for the entire 
@@ -30,13 +37,40 @@ import java.util.Iterator;
 public class GameServer {
     public static final int DEFAULT_PORT = 1350;  // The default port to use...
     public static final int DEFAULT_MAX_CON = 30; // Default max number of connections for this server.
+    public static final int DEFAULT_NIO_MAX_CON = 10000; // ... when using the NIO or blocking core.
+    static final int BACKLOG = 1024;              // Pending connections the OS may queue
+    public static final int DEFAULT_IDLE_TIMEOUT = 30;   // Seconds of silence before a client is pinged
+    public static final int DEFAULT_READ_TIMEOUT = 120;  // Seconds of silence before a client is dropped
+    public static final int DEFAULT_RATE = 1000;   // Commands per second a client may send (on average)
+    public static final int DEFAULT_BURST = 200;   // ... and at once
+    public static final int DEFAULT_SNAPSHOT = 60;  // Seconds between snapshots of the journaled state
+    private static final long SYNC_MILLIS = 1000;   // The journal is forced to the disk this often
+    public static enum IOMode { POLL, NIO, BLOCKING };  // How client connections are served
     public int maxConnections;                  // The maximum number of connections that the server will allow.
     public int port;                            // The port that this server listens on.
-    private HashMap<Integer,Player> player;     // All the players connected to system
-    private HashMap<Integer,RRTournament> tour; // Tournaments connected to system
-    private ArrayList<ClientConnection> conn;   // All client connections (paired with players)
+    private ConcurrentHashMap<Integer,Player> player;     // All the players connected to system
+    private ConcurrentHashMap<Integer,Tournament> tour;   // Tournaments connected to system
+    private ConcurrentLinkedQueue<Tournament> open;       // ... that may take players, in order of creation
+    private HashSet<ServerConnection> conn;     // All client connections (paired with players)
+    private long reaped = 0, rejected = 0;      // Connections closed for being silent / refused
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT * 1000L;  // Ping a client silent this long (ms, 0=never)
+    private long readTimeout = DEFAULT_READ_TIMEOUT * 1000L;  // Reap a client silent this long (ms, 0=never)
+    private double rate = DEFAULT_RATE;         // Commands per second per client (0=unlimited)
+    private int burst = DEFAULT_BURST;          // Commands at once per client
+    private IOMode ioMode = IOMode.NIO;         // How client connections are served
+    private int ioThreads;                      // Number of I/O threads (NIO)
     private ServerSocket serverSocket;   // The socket that is bound to and listening for the server.
-    private ExecutorService executor;    // Used to create new threads
+    private int matchThreads;            // Number of threads starting matches
+    private int matchQueue = ServerExecutors.DEFAULT_MATCH_QUEUE;  // Matches that may wait for one
+    private ServerExecutors executors;   // All the threads (created when the server runs)
+    private ServerStats stats;           // What the server is doing (@STATS and JMX)
+    private File journalDir = null;      // Where the state is journaled (null if it is not)
+    private int snapshotInterval = DEFAULT_SNAPSHOT;  // Seconds between snapshots
+    private volatile Journal journal = null;  // The journal (once recovered)
+    private long snapshotAppended = 0;   // Records in the journal at the last snapshot
+    private int idBase = 0;              // Player and tournament IDs start after this
+    private Coordinator coordinator = null;  // Sends the clients to the workers (null if this hosts them)
+    private Spectators spectators = null;    // Who watches the matches (once the executors exist)
     
     /**
      * Default Constructor.
@@ -45,86 +79,466 @@ public class GameServer {
     public GameServer(int port, int mc) {
 	this.port = port;
 	this.maxConnections = mc;
-	conn = new ArrayList<ClientConnection>();
-	player = new HashMap<Integer,Player>();
-	tour = new HashMap<Integer,RRTournament>();
-	executor = Executors.newCachedThreadPool();
+	conn = new HashSet<ServerConnection>();
+	ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	player = new ConcurrentHashMap<Integer,Player>();
+	tour = new ConcurrentHashMap<Integer,Tournament>();
+	open = new ConcurrentLinkedQueue<Tournament>();
+	matchThreads = Runtime.getRuntime().availableProcessors();
+	stats = new ServerStats(this);
     }
 
     /**
-     * Creates a new Round-Robin Tournament - of given type.
+     * Creates a new Tournament - of given type and format (see newTournament).
+     * Returns null if either is not recognized.
      **/
-    public synchronized RRTournament createTournament(String type, Player owner) {
-	// Determine what GameFactory to use
-	GameFactory g = null;
-	switch (type.toUpperCase()) {
-	case "SIMPLE": g = new SimpleFactory(); break;
-	case "NIM": g = new NimFactory(); break;
-	default: return null;  // No game recognized...
+    public Tournament createTournament(String type, Player owner, String format) {
+	return createTournament(type, owner, format, 0);
+    }
+
+    // Create the tournament with the given ID (0 for the next one)
+    private Tournament createTournament(String type, Player owner, String format, int id) {
+	GameFactory g = getGameFactory(type);
+	if (g == null) return null;  // No game recognized...
+	Tournament t = newTournament(format, g, owner, executors, stats, id);
+	if (t == null) return null;
+	type = type.toUpperCase();
+	t.setJournal(journal, type);
+	t.setSpectators(spectators);
+	synchronized (t) {  // Nobody joins (or snapshots it) before it is journaled
+	    tour.put(t.getID(), t);
+	    open.add(t);
+	    journal("T:" + t.getID() + ":" + type + ":" + owner.getID() + ":" + t.getFormat());
 	}
-	RRTournament rr = new RRTournament(g, owner);
-	tour.put(rr.getID(), rr);
+	return t;
+    }
 
-	// Start the Tournament Thread (BUT NOT THE TOURNAMENT)
-	FutureTask<Integer> task = new FutureTask<Integer>(rr);
-	executor.execute(task);
-	
-	return rr;
+    /**
+     * Create a tournament of the given format (with the given ID, 0 for the next one):
+     *   RR          - round-robin (RRTournament)
+     *   SWISS[/R]   - Swiss-system of R rounds, by default enough for the
+     *                 number of players (SwissTournament)
+     *   KNOCKOUT    - single elimination (KnockoutTournament)
+     * Returns null if the format is not recognized.
+     **/
+    public static Tournament newTournament(String format, GameFactory g, Player owner,
+					   ServerExecutors executors, ServerStats stats, int id) {
+	String[] f = format.toUpperCase().split("/", 2);
+	switch (f[0]) {
+	case "RR": return new RRTournament(g, owner, executors, stats, id);
+	case "SWISS":
+	    int rounds = 0;
+	    try {
+		if (f.length > 1) rounds = Integer.parseInt(f[1]);
+	    } catch (NumberFormatException e) {
+		return null;
+	    }
+	    if (rounds < 0) return null;
+	    return new SwissTournament(g, owner, executors, stats, id, rounds);
+	case "KNOCKOUT": return new KnockoutTournament(g, owner, executors, stats, id);
+	default: return null;
+	}
+    }
+
+    /**
+     * Determine what GameFactory to use for the given game type.
+     * Returns null if the type is not recognized.
+     **/
+    public static GameFactory getGameFactory(String type) {
+	switch (type.toUpperCase()) {
+	case "SIMPLE": return new SimpleFactory();
+	case "NIM": return new NimFactory();
+	case "TTT": return new TicTacToeFactory();
+	default: return null;
+	}
     }
 
     /**
      * Joins a tournament with the given ID... or if ID is negative
-     * just joins any tournament.
+     * just joins the first tournament still taking players.  The closed
+     * ones are dropped from the head of the open queue as they are met
+     * (a tournament never opens again) so finding it takes no search.
      **/
-    public synchronized int joinTournament(Player p, int id) {
-	if (id < 0) {
-	    // Just get an arbitrary tournament (first in the hashmap listing)
-	    Iterator<RRTournament> it = tour.values().iterator();
-	    if (it.hasNext())
-		return joinTournament(p, it.next());
-	    else
-		return -1;  // No Tournaments in the map
-	} else {
-	    RRTournament t = tour.get(new Integer(id));
-	    return  joinTournament(p, t);
+    public int joinTournament(Player p, int id) {
+	if (id >= 0) return joinTournament(p, tour.get(id));
+	for (Tournament t = open.peek(); t != null; t = open.peek()) {
+	    if (t.isOpen()) {
+		int tid = joinTournament(p, t);
+		if (tid >= 0) return tid;
+	    }
+	    open.remove(t);  // Closed (maybe just now): quick, it is at the head
 	}
+	return -1;  // No tournament takes players
     }
 
-    private synchronized int joinTournament(Player p, RRTournament tour) {
+    private int joinTournament(Player p, Tournament tour) {
 	if (tour == null) return -1;  // Tour was not provided (or found)
-	tour.addPlayer(p);
+	if (!tour.addPlayer(p) && p.getTour() != tour) return -1;  // Not taking players
 	return tour.getID();
     }
     
     /**
      * Adds and registers a new player to the system.
      **/
-    public synchronized Player registerPlayer() {
+    public Player registerPlayer() {
 	Player p = new Player();
 	player.put(p.getID(), p);
+	journal("P:" + p.getID());
 	return p;
     }
+
+    /**
+     * Name the player (and journal it).
+     **/
+    void setName(Player p, String name) {
+	p.setName(name);
+	journal("N:" + p.getID() + ":" + name);
+    }
     
     /**
      * Get a returning player in the system.
      **/
-    public synchronized Player getPlayer(int id) {
+    public Player getPlayer(int id) {
 	return player.get(id);
     }
     
+    /**
+     * Select how the client connections are served (and by how many I/O threads for NIO).
+     **/
+    public void setIOMode(IOMode mode, int threads) {
+	this.ioMode = mode;
+	if (threads > 0) this.ioThreads = threads;
+    }
+
+    /**
+     * Size the pool starting matches (shared by all tournaments).
+     **/
+    public void setMatchPool(int threads, int queue) {
+	if (threads > 0) this.matchThreads = threads;
+	if (queue > 0) this.matchQueue = queue;
+    }
+
+    /**
+     * Journal the state in the given directory (null not to) and snapshot
+     * it every interval seconds.  A server started with the journal of a
+     * previous one carries on where that one stopped.
+     **/
+    public void setJournal(String dir, int interval) {
+	this.journalDir = (dir == null) ? null : new File(dir);
+	if (interval > 0) this.snapshotInterval = interval;
+    }
+
+    private void journal(String record) {
+	if (journal != null) journal.append(record);
+    }
+
+    /**
+     * Hand out player and tournament IDs starting after base - so that the
+     * workers of a coordinator never hand out the same ones (e.g. base
+     * 1000000 for the first, 2000000 for the second, ...).
+     **/
+    public void setIDBase(int base) {
+	this.idBase = Math.max(0, base);
+	Player.claimID(idBase);
+	Tournament.claimID(idBase);
+    }
+
+    int getIDBase() { return idBase; }
+
+    /**
+     * Coordinate the given workers (HOST:PORT,...) instead of hosting the
+     * tournaments here: clients are sent on to them (see Coordinator).
+     **/
+    public void setWorkers(String workers) {
+	this.coordinator = (workers == null) ? null : new Coordinator(workers);
+    }
+
+    /**
+     * The handler of the commands of a new connection.
+     **/
+    ProtocolHandler newHandler(ServerConnection c) {
+	return (coordinator != null) ? new CoordinatorHandler(this, c, coordinator) : new ProtocolHandler(this, c);
+    }
+
+    /**
+     * The tournaments: TID/TYPE/PLAYERS/LEFT/STATE,... (STATE is W waiting, A active or E ended)
+     **/
+    String tournaments() {
+	StringBuilder result = new StringBuilder();
+	for (Tournament t: tournamentList()) {
+	    if (result.length() > 0) result.append(',');
+	    result.append(t.summary());
+	}
+	return result.toString();
+    }
+
+    /**
+     * The tallies of the players of every tournament: TID/ID/SCORE/W/L/T,...
+     **/
+    String tallies() {
+	StringBuilder result = new StringBuilder();
+	for (Tournament t: tournamentList()) t.appendTallies(result);
+	return result.toString();
+    }
+
+    // The tournaments by ID
+    private ArrayList<Tournament> tournamentList() {
+	ArrayList<Tournament> tours = new ArrayList<Tournament>(tour.values());
+	tours.sort((a, b) -> a.getID() - b.getID());
+	return tours;
+    }
+
+    /**
+     * The tournament with the given ID (null if there is none).
+     **/
+    Tournament getTournament(int id) {
+	return tour.get(id);
+    }
+
+    /**
+     * Show a new spectator every match in progress.
+     **/
+    void showMatches(ServerConnection c) {
+	for (Tournament t: tournamentList()) t.showTo(c);
+    }
+
+    Spectators getSpectators() { return spectators; }
+    ServerExecutors getExecutors() { return executors; }
+    ServerStats getStats() { return stats; }
+
+    /**
+     * Register a new connection.  Returns false if the maximum number of connections is reached.
+     **/
+    synchronized boolean addConnection(ServerConnection c) {
+	if (conn.size() >= maxConnections) {
+	    rejected++;
+	    return false;
+	}
+	conn.add(c);
+	return true;
+    }
+
+    /**
+     * A connection was closed.
+     **/
+    synchronized void removeConnection(ServerConnection c) {
+	conn.remove(c);
+    }
+
+    /**
+     * Set the timeouts (in seconds, 0 to disable): idle clients are pinged
+     * (a client that answers is no longer idle) and clients silent for the
+     * read timeout are disconnected.
+     **/
+    public void setTimeouts(int idleSeconds, int readSeconds) {
+	this.idleTimeout = Math.max(0, idleSeconds) * 1000L;
+	this.readTimeout = Math.max(0, readSeconds) * 1000L;
+    }
+
+    /**
+     * Limit the commands of each client to rate per second on average
+     * and burst at once (rate 0 for no limit).
+     **/
+    public void setRateLimit(double rate, int burst) {
+	this.rate = Math.max(0, rate);
+	this.burst = Math.max(1, burst);
+    }
+
+    /**
+     * A rate limiter for a new client (null if clients are not limited).
+     **/
+    RateLimiter newRateLimiter() {
+	return (rate > 0) ? new RateLimiter(rate, burst) : null;
+    }
+
+    synchronized int activeConnections() { return conn.size(); }
+
+    /**
+     * Messages waiting to be written to the clients: {TOTAL, MOST FOR ONE CLIENT}
+     **/
+    long[] outboundQueued() {
+	ArrayList<ServerConnection> all;
+	synchronized (this) {
+	    all = new ArrayList<ServerConnection>(conn);  // Not asked under the lock (close takes both)
+	}
+	long total = 0, most = 0;
+	for (ServerConnection c: all) {
+	    int n = c.pendingMessages();
+	    total += n;
+	    most = Math.max(most, n);
+	}
+	return new long[] { total, most };
+    }
+
+    /**
+     * Connection counters: ACTIVE:REAPED:REJECTED
+     **/
+    synchronized String connectionStats() {
+	return conn.size() + ":" + reaped + ":" + rejected;
+    }
+
+    /**
+     * The heartbeat: ping the idle clients and close the dead ones (which
+     * also releases their threads and sockets).
+     **/
+    private void heartbeat() {
+	long now = System.nanoTime();
+	ArrayList<ServerConnection> idle = new ArrayList<ServerConnection>();
+	ArrayList<ServerConnection> dead = new ArrayList<ServerConnection>();
+	synchronized (this) {
+	    for (ServerConnection c: conn) {
+		long silent = (now - c.getLastRead()) / 1000000;
+		if (readTimeout > 0 && silent >= readTimeout) dead.add(c);
+		else if (idleTimeout > 0 && silent >= idleTimeout) idle.add(c);
+	    }
+	    reaped += dead.size();
+	}
+	for (ServerConnection c: dead) c.close();
+	for (ServerConnection c: idle) c.postMessageLn("@PING");
+    }
+
+    // Run the heartbeat (if there are any timeouts) often enough to honour them.
+    private void startHeartbeat() {
+	long shortest = (idleTimeout == 0) ? readTimeout : (readTimeout == 0) ? idleTimeout : Math.min(idleTimeout, readTimeout);
+	if (shortest == 0) return;
+	long period = Math.max(250, shortest / 2);
+	executors.scheduler().scheduleWithFixedDelay(this::heartbeat, period, period, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Register a new socket (client) connection.
      * @param sock 
      */
     private synchronized void addConnection(Socket sock) throws IOException {
+	sock.setTcpNoDelay(true);  // Moves are small: send them now, not after the last one is acknowledged
 	ClientConnection c = new ClientConnection(sock, this);
-	if (conn.size() >= maxConnections)
+	if (!addConnection(c)) {
+	    c.postMessageLn("@ERROR:Maximum number of clients reached.");
+	    c.close();  // Transmits the message
 	    throw new IOException("Error: Maximum  number of clients (" + maxConnections + ") reached.");
+	}
 	
-	conn.add(c);  // Add connection to list of sockets
-	FutureTask<Integer> task = new FutureTask<Integer>(c);
-	executor.execute(task);
-	// WARNING: Client Connections are never removed... even if they die.  TBD.
+	try {
+	    if (ioMode == IOMode.BLOCKING) {
+		c.startBlocking(executors.io());
+		return;
+	    }
+	    FutureTask<Integer> task = new FutureTask<Integer>(c);
+	    executors.io().execute(task);
+	} catch (RejectedExecutionException e) {
+	    rejected++;
+	    c.close();
+	    throw new IOException("Error: No I/O thread available for the client.");
+	}
+    }
+
+    /**
+     * Rebuild the state from the journal (if any): the players, tournaments
+     * and results.  Players return with @PLAYER:ID; the matches that were
+     * not finished are played again once the tournament is active.  Then
+     * journal from here on and take snapshots regularly.
+     **/
+    private void recover() throws IOException {
+	if (journalDir == null) return;
+	Journal j = new Journal(journalDir);
+	HashMap<Tournament,Boolean> active = new HashMap<Tournament,Boolean>();
+	long start = System.nanoTime();
+	long records = j.replay(r -> replay(r, active));
+	journal = j;
+	for (Tournament t: tour.values()) t.setJournal(j, t.getType());
+	j.start();
+	snapshot();
+	for (Tournament t: active.keySet())
+	    if (active.get(t)) t.setActive(true);  // Play the rest
+	if (records > 0)
+	    System.out.println("Recovered " + player.size() + " players and " + tour.size() + " tournaments (" +
+			       records + " records) in " + (System.nanoTime() - start) / 1000000 + "ms.");
+	executors.scheduler().scheduleWithFixedDelay(j::sync, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+	executors.scheduler().scheduleWithFixedDelay(this::snapshotIfChanged, snapshotInterval,
+						     snapshotInterval, TimeUnit.SECONDS);
+    }
+
+    // Apply a journal record (see Journal).  A record replayed again changes nothing.
+    private void replay(String[] r, HashMap<Tournament,Boolean> active) {
+	int id = Integer.parseInt(r[1]);
+	switch (r[0]) {
+	case "P": if (!player.containsKey(id)) player.put(id, new Player(id)); break;
+	case "N": player.get(id).setName(r[2]); break;
+	case "T":
+	    String format = (r.length > 4) ? r[4] : "RR";  // Journals before the formats were round-robins
+	    if (!tour.containsKey(id) && createTournament(r[2], player.get(Integer.parseInt(r[3])), format, id) == null)
+		throw new IllegalArgumentException("Type or format not recognized");
+	    break;
+	case "O": tour.get(id).setPolicy(Tournament.Policy.valueOf(r[2])); break;
+	case "J": tour.get(id).addPlayer(player.get(Integer.parseInt(r[2]))); break;
+	case "A": active.put(tour.get(id), r[2].equals("1")); break;
+	case "R":
+	    tour.get(id).restoreResult(player.get(Integer.parseInt(r[2])), player.get(Integer.parseInt(r[3])),
+				       r[4].charAt(0));
+	    break;
+	case "E": tour.get(id).terminate(); break;
+	default: throw new IllegalArgumentException("Unknown record");
+	}
+    }
+
+    // Snapshot the state if it changed since the last snapshot.
+    private void snapshotIfChanged() {
+	if (journal.appended() == snapshotAppended) return;
+	try {
+	    snapshot();
+	} catch (Exception e) {
+	    System.err.println("Snapshot failed (the journal still has it all): " + e.getMessage());
+	}
+    }
+
+    /**
+     * Replace the snapshot with the current state.  The journal moves on to
+     * a new segment first, so everything recorded before is in the state
+     * copied (a change recorded meanwhile may be in both, which is harmless).
+     **/
+    private void snapshot() throws IOException {
+	long appended = journal.appended();
+	int from = journal.rotate();
+	ArrayList<String> tourRecords = new ArrayList<String>();
+	for (Tournament t: tournamentList()) t.snapshot(tourRecords);
+	List<String> records = new ArrayList<String>();
+	for (Player p: player.values()) {  // Copied after the tournaments so all their players are in it
+	    records.add("P:" + p.getID());
+	    if (p.getName() != null) records.add("N:" + p.getID() + ":" + p.getName());
+	}
+	records.addAll(tourRecords);
+	journal.writeSnapshot(records, from);
+	snapshotAppended = appended;
+    }
+
+    // Publish the statistics through JMX (jconsole, ...) - they are still available through @STATS if not.
+    private void registerStats() {
+	try {
+	    ManagementFactory.getPlatformMBeanServer()
+		.registerMBean(stats, new ObjectName("cad.ai.server:type=ServerStats,port=" + port));
+	} catch (Exception e) {
+	    System.err.println("Could not register the statistics with JMX: " + e.getMessage());
+	}
+    }
+
+    /**
+     * Create the thread pools.  The I/O pool is sized for the I/O mode:
+     * the NIO loops, one thread per polled connection or a reader and a
+     * writer per blocking connection (virtual threads if available).
+     **/
+    private void startExecutors() {
+	ThreadFactory ioFactory = null;
+	int ioLimit = ioThreads;
+	if (ioMode == IOMode.POLL) {
+	    ioLimit = maxConnections;
+	} else if (ioMode == IOMode.BLOCKING) {
+	    ioLimit = 2 * maxConnections;
+	    ioFactory = ServerExecutors.virtualThreads();
+	    System.out.println(ioFactory != null ? "Serving connections with virtual threads." :
+			       "Virtual threads are not available: serving connections with platform threads.");
+	}
+	executors = new ServerExecutors(ioLimit, ioFactory, matchThreads, matchQueue);
+	spectators = new Spectators(executors.watch());
     }
 
     /**
@@ -133,9 +547,29 @@ public class GameServer {
      */
     private void run() {
 	System.out.println("The AI Game Server: Hello.  Is there anybody out there?");
+	startExecutors();
+	startHeartbeat();
+	registerStats();
+	if (coordinator != null) coordinator.start();
+	try {
+	    recover();
+	} catch (Exception e) {
+	    System.err.println("ABORTING: Could not recover the journal: " + e.getMessage());
+	    System.exit(1);
+	}
+	if (ioMode == IOMode.NIO) {
+	    try {
+		new NioServer(this, port, ioThreads).run();
+	    } catch (Exception e) {
+		System.err.println("ABORTING: " + e.getMessage());
+		e.printStackTrace();
+		System.exit(1);
+	    }
+	    return;
+	}
 	try {
 	    // Create a server socket bound to the given port
-	    serverSocket = new ServerSocket(port);
+	    serverSocket = new ServerSocket(port, BACKLOG);
 	    serverSocket.setSoTimeout(1000);  // So accept does not block forever
 	    while (true) {
 		try {
@@ -165,7 +599,17 @@ public class GameServer {
     public static void main(String[] args) {
 	// Defaults to use
 	int port = DEFAULT_PORT;
-	int mc = DEFAULT_MAX_CON;
+	int mc = -1;  // Depends on the I/O mode
+	IOMode io = IOMode.NIO;
+	int ioThreads = 0;  // Default
+	int matchThreads = 0, matchQueue = 0;  // Defaults
+	int idleTimeout = DEFAULT_IDLE_TIMEOUT, readTimeout = DEFAULT_READ_TIMEOUT;
+	double rate = DEFAULT_RATE;
+	int burst = DEFAULT_BURST;
+	String journal = null;
+	int snapshot = DEFAULT_SNAPSHOT;
+	int idBase = 0;
+	String workers = null;
 
 	// Parse the arguments
 	for (String arg: args) {
@@ -175,6 +619,18 @@ public class GameServer {
 		case "--help": printUsage(null); break;
 		case "--port": port = Integer.parseInt(params[1]); break;
 		case "--maxcon": mc = Integer.parseInt(params[1]); break;
+		case "--io": io = IOMode.valueOf(params[1].toUpperCase()); break;
+		case "--iothreads": ioThreads = Integer.parseInt(params[1]); break;
+		case "--matchthreads": matchThreads = Integer.parseInt(params[1]); break;
+		case "--matchqueue": matchQueue = Integer.parseInt(params[1]); break;
+		case "--idletimeout": idleTimeout = Integer.parseInt(params[1]); break;
+		case "--readtimeout": readTimeout = Integer.parseInt(params[1]); break;
+		case "--rate": rate = Double.parseDouble(params[1]); break;
+		case "--burst": burst = Integer.parseInt(params[1]); break;
+		case "--journal": journal = params[1]; break;
+		case "--snapshot": snapshot = Integer.parseInt(params[1]); break;
+		case "--idbase": idBase = Integer.parseInt(params[1]); break;
+		case "--workers": workers = params[1]; break;
 		default:
 		    printUsage("Unrecognized parameter: " + arg);
 		}
@@ -183,7 +639,15 @@ public class GameServer {
 	    }
 	}	    
 
+	if (mc < 0) mc = (io == IOMode.POLL) ? DEFAULT_MAX_CON : DEFAULT_NIO_MAX_CON;
 	GameServer s = new GameServer(port, mc);
+	s.setIOMode(io, ioThreads);
+	s.setMatchPool(matchThreads, matchQueue);
+	s.setTimeouts(idleTimeout, readTimeout);
+	s.setRateLimit(rate, burst);
+	s.setJournal(journal, snapshot);
+	s.setIDBase(idBase);
+	s.setWorkers(workers);
 	s.run();
     }
 
@@ -196,6 +660,25 @@ public class GameServer {
 	System.err.println("         --help           Print this help message.");
 	System.err.println("         --port=integer   The port to listen on.");
 	System.err.println("         --maxcon=integer The maximum number of connections to support.");
+	System.err.println("                          [default=" + DEFAULT_NIO_MAX_CON + " for nio/blocking, " + DEFAULT_MAX_CON + " for poll]");
+	System.err.println("         --io=MODE        How connections are served [default=nio]:");
+	System.err.println("                            nio       Event driven (selectors) on a few I/O threads.");
+	System.err.println("                            blocking  Blocking reader and writer (virtual) threads per connection.");
+	System.err.println("                            poll      One polling thread per connection.");
+	System.err.println("         --iothreads=integer Number of I/O threads for nio [default=half the cores].");
+	System.err.println("         --matchthreads=integer Threads starting matches (all tournaments) [default=#cores].");
+	System.err.println("         --matchqueue=integer   Matches that may wait to start [default=" + ServerExecutors.DEFAULT_MATCH_QUEUE + "].");
+	System.err.println("         --idletimeout=seconds  Ping clients silent this long (0=never) [default=" + DEFAULT_IDLE_TIMEOUT + "].");
+	System.err.println("         --readtimeout=seconds  Disconnect clients silent this long (0=never) [default=" + DEFAULT_READ_TIMEOUT + "].");
+	System.err.println("         --rate=number    Commands per second a client may send (0=no limit) [default=" + DEFAULT_RATE + "].");
+	System.err.println("         --burst=integer  Commands a client may send at once [default=" + DEFAULT_BURST + "].");
+	System.err.println("         --journal=DIR    Journal the players, tournaments and results in DIR (and");
+	System.err.println("                          recover them from it on a restart) [default=not journaled].");
+	System.err.println("         --snapshot=seconds Snapshot the journaled state this often [default=" + DEFAULT_SNAPSHOT + "].");
+	System.err.println("         --idbase=integer Hand out player and tournament IDs after this one (each worker");
+	System.err.println("                          of a coordinator needs its own range) [default=0].");
+	System.err.println("         --workers=HOST:PORT,... Coordinate these servers: clients are sent on to them");
+	System.err.println("                          (the addresses must be reachable by the clients).");
 	if (message != null) System.err.println("       " + message);
 	System.exit(1);
     }       
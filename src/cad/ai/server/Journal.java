@@ -0,0 +1,228 @@
+package cad.ai.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/***********************************************************
+ * The server's state on disk so it survives a restart: an append-only
+ * journal of what happened (players registered and named, tournaments
+ * created, joined, started, paused and ended, matches finished) - one
+ * record per line, fields separated by ':' - and a snapshot of the whole
+ * state from time to time so the journal does not grow forever:
+ *   P:PID            a player was registered
+ *   N:PID:NAME       ... and named
+ *   T:TID:TYPE:PID:FORMAT  a tournament of TYPE and FORMAT (RR if
+ *                    missing) was created by player PID
+ *   O:TID:POLICY     ... its scheduling policy set
+ *   J:TID:PID        ... joined by player PID
+ *   A:TID:1|0        ... started (1) or paused (0)
+ *   R:TID:HID:AID:R  ... match HID/AID finished (R is H, A or T as in @REPORT)
+ *   E:TID            ... ended
+ * The journal is split in numbered segments (DIR/journal.N).  A snapshot
+ * (DIR/snapshot) holds the records rebuilding the state at the time it
+ * was taken, starting with the line S:N - the first segment it does not
+ * cover.  Older segments are deleted once it is written; they never need
+ * replaying again.  Records are written to the file (flushed) as they are
+ * made so a crash of the server loses none, and forced to the disk every
+ * second (see sync) so a crash of the machine loses at most that much.
+ * The same record may be in the snapshot and the segment after it:
+ * replaying a record twice changes nothing (see GameServer.recover).
+ ***********************************************************/
+class Journal {
+    private static final String SEGMENT = "journal.";
+    private static final String SNAPSHOT = "snapshot";
+    private final File dir;
+    private int segment = 0;               // The segment being appended to
+    private FileOutputStream file = null;  // ... and where it is written (null until started)
+    private Writer out = null;
+    private long appended = 0;             // Records appended so far
+    private boolean unsynced = false;      // Some not forced to the disk yet
+
+    /**
+     * @param dir Where the journal is kept (created if needed)
+     **/
+    Journal(File dir) throws IOException {
+	this.dir = dir;
+	if (!dir.isDirectory() && !dir.mkdirs())
+	    throw new IOException("Cannot create the journal directory " + dir);
+    }
+
+    /**
+     * Replay the snapshot then the segments after it, in order, passing
+     * each record (split into its fields) to apply.  A record that fails is
+     * skipped with a warning, as is a line torn by a crash (not ended).
+     * Returns the number of records replayed.
+     **/
+    long replay(Consumer<String[]> apply) throws IOException {
+	int from = 0;
+	long count = 0;
+	File snapshot = new File(dir, SNAPSHOT);
+	if (snapshot.exists()) {
+	    List<String> lines = lines(snapshot);
+	    if (lines.isEmpty() || !lines.get(0).startsWith("S:"))
+		throw new IOException("Not a snapshot: " + snapshot);
+	    from = Integer.parseInt(lines.get(0).substring(2));
+	    count += replay(lines.subList(1, lines.size()), apply);
+	}
+	for (int n: segments())
+	    if (n >= from) count += replay(lines(segmentFile(n)), apply);
+	return count;
+    }
+
+    private static long replay(List<String> lines, Consumer<String[]> apply) {
+	long count = 0;
+	for (String line: lines) {
+	    try {
+		apply.accept(line.split(":"));
+		count++;
+	    } catch (Exception e) {
+		System.err.println("Journal: skipping record " + line + " (" + e + ")");
+	    }
+	}
+	return count;
+    }
+
+    /**
+     * Start appending, to a new segment (after any there already are -
+     * the last one might end with a torn record).
+     **/
+    synchronized void start() throws IOException {
+	List<Integer> all = segments();
+	segment = all.isEmpty() ? 0 : all.get(all.size() - 1);
+	rotate();
+    }
+
+    /**
+     * Append a record.  Ignored until the journal is started (so the state
+     * rebuilt by a replay is not journaled again).
+     **/
+    synchronized void append(String record) {
+	if (out == null) return;
+	try {
+	    out.write(record);
+	    out.write('\n');
+	    out.flush();
+	    appended++;
+	    unsynced = true;
+	} catch (IOException e) {
+	    System.err.println("Journal: could not write " + record + " (" + e.getMessage() + ")");
+	}
+    }
+
+    synchronized long appended() { return appended; }
+
+    /**
+     * Force the records appended so far to the disk.  The appends go on
+     * meanwhile (only the file is shared).
+     **/
+    void sync() {
+	FileChannel channel;
+	synchronized (this) {
+	    if (!unsynced || file == null) return;
+	    unsynced = false;
+	    channel = file.getChannel();
+	}
+	try {
+	    channel.force(false);
+	} catch (IOException e) {
+	    System.err.println("Journal: could not sync (" + e.getMessage() + ")");
+	}
+    }
+
+    /**
+     * Append to the next segment from now on.  Returns its number (where
+     * a snapshot taken from now on starts, see writeSnapshot).
+     **/
+    synchronized int rotate() throws IOException {
+	close();
+	segment++;
+	file = new FileOutputStream(segmentFile(segment), true);
+	out = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+	return segment;
+    }
+
+    /**
+     * Replace the snapshot with these records - the state once every
+     * segment before from is replayed - and delete those segments.  The
+     * snapshot is replaced in one step so a crash leaves the old one or
+     * the new one.
+     **/
+    void writeSnapshot(List<String> records, int from) throws IOException {
+	File tmp = new File(dir, SNAPSHOT + ".tmp");
+	try (FileOutputStream f = new FileOutputStream(tmp);
+	     Writer w = new BufferedWriter(new OutputStreamWriter(f, StandardCharsets.UTF_8))) {
+	    w.write("S:" + from + "\n");
+	    for (String r: records) {
+		w.write(r);
+		w.write('\n');
+	    }
+	    w.flush();
+	    f.getFD().sync();
+	}
+	Files.move(tmp.toPath(), new File(dir, SNAPSHOT).toPath(),
+		   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	for (int n: segments())
+	    if (n < from) segmentFile(n).delete();
+    }
+
+    /**
+     * Stop appending (the records so far are forced to the disk).
+     **/
+    synchronized void close() {
+	if (out == null) return;
+	try {
+	    out.flush();
+	    file.getFD().sync();
+	    out.close();
+	} catch (IOException e) {
+	    System.err.println("Journal: could not close segment " + segment + " (" + e.getMessage() + ")");
+	}
+	out = null;
+	file = null;
+	unsynced = false;
+    }
+
+    private File segmentFile(int n) { return new File(dir, SEGMENT + n); }
+
+    // The numbers of the segments in the directory, in order.
+    private List<Integer> segments() {
+	ArrayList<Integer> all = new ArrayList<Integer>();
+	String[] names = dir.list();
+	if (names == null) return all;
+	for (String name: names) {
+	    if (!name.startsWith(SEGMENT)) continue;
+	    try {
+		all.add(Integer.parseInt(name.substring(SEGMENT.length())));
+	    } catch (NumberFormatException e) {
+		// Not a segment
+	    }
+	}
+	Collections.sort(all);
+	return all;
+    }
+
+    // The complete lines of the file (a last one without its end was torn by a crash).
+    private static List<String> lines(File f) throws IOException {
+	String text = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+	ArrayList<String> lines = new ArrayList<String>();
+	int start = 0;
+	for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start)) {
+	    if (end > start) lines.add(text.substring(start, end));
+	    start = end + 1;
+	}
+	if (start < text.length()) System.err.println("Journal: ignoring the torn end of " + f);
+	return lines;
+    }
+}
@@ -0,0 +1,122 @@
+package cad.ai.server;
+
+import java.util.HashMap;
+
+/***********************************************************
+ * A knockout (single elimination) tournament: the players are seeded in
+ * the order they joined into a bracket of 2^r places (r = ceil(log2 n)),
+ * the top seeds getting the byes and seeds 1 and 2 meeting in the final
+ * at the earliest.  The winner of each match goes on, the loser is out,
+ * so n players play n-1 matches in r rounds - plus the replays: a tie is
+ * played again with home and away swapped, at most MAX_REPLAYS times,
+ * after which the better seed goes on.
+ * Nobody joins once the bracket is drawn (at START).  A match is created
+ * as soon as both its players are known, so one half of the bracket does
+ * not wait for the other.
+ * Everything depends only on the results, so replaying them from the
+ * journal draws the same bracket and matches again.
+ ***********************************************************/
+public class KnockoutTournament extends Tournament {
+    private static final int MAX_REPLAYS = 2;   // Replays of a tie before the better seed goes on
+    private Player[][] slot = null;     // slot[r][i]: who is in place i of round r (null for a bye)
+    private boolean[][] known;          // ... and whether that is known yet
+    private HashMap<Player, Integer> seed = new HashMap<Player, Integer>();  // 0 is the top seed
+    private HashMap<Match, int[]> feeds = new HashMap<Match, int[]>();       // Match -> {round, place, replays}
+    private int decisions = 0;          // Matches that put a player out
+    private Player champion = null;
+
+    public KnockoutTournament(GameFactory g, Player owner, ServerExecutors executors, ServerStats stats) {
+	this(g, owner, executors, stats, 0);
+    }
+
+    KnockoutTournament(GameFactory g, Player owner, ServerExecutors executors, ServerStats stats, int id) {
+	super(g, owner, executors, stats, id);
+    }
+
+    public String getFormat() { return "KNOCKOUT"; }
+
+    public synchronized boolean isOpen() { return super.isOpen() && slot == null; }
+
+    /**
+     * The winner (null until the final is over).
+     **/
+    public synchronized Player getChampion() { return champion; }
+
+    protected void starting() {
+	if (slot != null || player.size() < 2) return;
+	int rounds = 32 - Integer.numberOfLeadingZeros(player.size() - 1);
+	slot = new Player[rounds + 1][];
+	known = new boolean[rounds + 1][];
+	for (int r = 0; r <= rounds; r++) {
+	    slot[r] = new Player[1 << (rounds - r)];
+	    known[r] = new boolean[1 << (rounds - r)];
+	}
+
+	// Standard seeding: 1 v 2^r, 2 v 2^r - 1, ... placed so the best seeds meet last
+	int[] order = { 0 };
+	while (order.length < slot[0].length) {
+	    int[] next = new int[order.length * 2];
+	    for (int i = 0; i < order.length; i++) {
+		next[2 * i] = order[i];
+		next[2 * i + 1] = next.length - 1 - order[i];
+	    }
+	    order = next;
+	}
+	for (int i = 0; i < player.size(); i++) seed.put(player.get(i), i);
+	for (int i = 0; i < order.length; i++) {
+	    slot[0][i] = (order[i] < player.size()) ? player.get(order[i]) : null;
+	    known[0][i] = true;
+	}
+	for (int i = 0; i < order.length; i += 2) advance(0, i);
+	debug("Bracket of " + order.length + " drawn for " + player.size() + " players.");
+    }
+
+    protected void decided(Match m) {
+	int[] feed = feeds.remove(m);
+	if (feed == null) return;
+	Player winner;
+	switch (m.getState()) {
+	case HOME_WIN: winner = m.getHome(); break;
+	case AWAY_WIN: winner = m.getAway(); break;
+	default:
+	    if (feed[2] < MAX_REPLAYS) {
+		Match replay = newMatch(m.getAway(), m.getHome());
+		feeds.put(replay, new int[] { feed[0], feed[1], feed[2] + 1 });
+		return;  // The players are started again (see Tournament.matchFinished)
+	    }
+	    winner = (seed.get(m.getHome()) < seed.get(m.getAway())) ? m.getHome() : m.getAway();
+	}
+	decisions++;
+	place(feed[0] + 1, feed[1] / 2, winner);
+    }
+
+    public synchronized int matchesLeft() {
+	return Math.max(0, player.size() - 1 - decisions);
+    }
+
+    // Put p (null for a bye) in place i of round r and play it if its opponent is known too.
+    private void place(int r, int i, Player p) {
+	slot[r][i] = p;
+	known[r][i] = true;
+	if (r == slot.length - 1) {
+	    champion = p;
+	    debug("Champion: " + (p == null ? "nobody" : p.getID()));
+	} else {
+	    advance(r, i & ~1);
+	}
+    }
+
+    // Places i and i+1 of round r meet (once both are known).
+    private void advance(int r, int i) {
+	if (!known[r][i] || !known[r][i + 1]) return;
+	Player a = slot[r][i], b = slot[r][i + 1];
+	if (a == null || b == null) {
+	    place(r + 1, i / 2, (a == null) ? b : a);  // A bye
+	    return;
+	}
+	Match m = newMatch(a, b);
+	feeds.put(m, new int[] { r, i, 0 });
+	ready(a);
+	ready(b);
+    }
+}
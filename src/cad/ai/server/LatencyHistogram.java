@@ -0,0 +1,73 @@
+package cad.ai.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/***********************************************************
+ * A histogram of latencies (in nanoseconds) cheap enough to record every
+ * move: no locks, no allocation, just one counter per bucket.  Buckets
+ * are powers of two split into 4 (so a percentile is within 25% of the
+ * true value) which covers everything from 1ns to centuries in 256
+ * counters.
+ ***********************************************************/
+class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;   // Per power of two (2 bits)
+    private final AtomicLongArray counts = new AtomicLongArray(256);
+
+    /**
+     * Record a latency (nanoseconds).
+     **/
+    void record(long nanos) {
+	counts.incrementAndGet(index(Math.max(0, nanos)));
+    }
+
+    /**
+     * Number of latencies recorded.
+     **/
+    long count() {
+	long n = 0;
+	for (int i = 0; i < counts.length(); i++) n += counts.get(i);
+	return n;
+    }
+
+    /**
+     * The latency (nanoseconds) below which the given fraction (e.g. 0.99)
+     * of the recorded ones are - or 0 if nothing was recorded.
+     **/
+    long percentile(double fraction) {
+	long[] snapshot = new long[counts.length()];
+	long n = 0;
+	for (int i = 0; i < snapshot.length; i++) n += (snapshot[i] = counts.get(i));
+	if (n == 0) return 0;
+	long rank = Math.max(1, (long) Math.ceil(fraction * n));
+	for (int i = 0; i < snapshot.length; i++) {
+	    rank -= snapshot[i];
+	    if (rank <= 0) return highest(i);
+	}
+	return highest(snapshot.length - 1);
+    }
+
+    /**
+     * The largest latency (nanoseconds, rounded up to its bucket) recorded.
+     **/
+    long max() {
+	for (int i = counts.length() - 1; i >= 0; i--)
+	    if (counts.get(i) > 0) return highest(i);
+	return 0;
+    }
+
+    // Values below 4 have a bucket each, then 4 buckets per power of two.
+    private static int index(long v) {
+	if (v < SUB_BUCKETS) return (int) v;
+	int e = 63 - Long.numberOfLeadingZeros(v);  // v is in [2^e, 2^(e+1))
+	int sub = (int) (v >>> (e - 2)) & 3;
+	return SUB_BUCKETS * (e - 1) + sub;
+    }
+
+    // The largest value that falls in bucket i.
+    private static long highest(int i) {
+	if (i < SUB_BUCKETS) return i;
+	int e = i / SUB_BUCKETS + 1;
+	long width = 1L << (e - 2);
+	return (SUB_BUCKETS + i % SUB_BUCKETS) * width + width - 1;
+    }
+}
@@ -11,8 +11,8 @@
 
 package cad.ai.server;
 
-import java.util.ArrayList;
 import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import cad.ai.game.*;
@@ -20,8 +20,10 @@ import cad.ai.game.*;
 /***********************************************************
  * A Match to play (at some point) in the tournament.
  * It consists of the two players (home and away) that
- * will play the game.  The game to play is provided at construction
- * time.
+ * will play the game.  Until the match starts it is just a lightweight
+ * pairing: the game itself is only created (from the factory provided
+ * at construction time) when the match starts and it is released again
+ * once the match finishes.  Only the result (state) is kept afterwards.
  * Yes, we could make these based on multiple players - but not needed... yet.
  ***********************************************************/
 public class Match implements Callable<Integer> {
@@ -29,102 +31,243 @@ public class Match implements Callable<Integer> {
     public class Message {
 	Player p;        // The player that sent it
 	String message;  // The message
-	Message(Player p, String message) { this.p = p; this.message = message; }
+	long time;       // When it was posted (System.nanoTime) - for the move latency
+	Message(Player p, String message) { this.p = p; this.message = message; this.time = System.nanoTime(); }
     };
     
     private Player home; // Player one
     private Player away; // Player two
-    private Game game;   // Game to play
-    private State state = State.NOT_STARTED;    // State of the match
+    private Tournament tour;  // The tournament this match is part of (informed when done)
+    private ServerStats stats;  // Where matches and move latencies are counted (may be null)
+    private GameFactory gameFactory;  // Used to create the game when the match starts
+    private Game game = null;   // Game being played (only while IN_PROGRESS)
+    private volatile State state = State.NOT_STARTED;    // State of the match
     private Deque<Message> messages;             // Messages from Players to the Game
     private int errorCount = 0; // # consecutive errors (inv. moves)
+    private boolean processing = false;  // Messages are being processed (by the thread holding the lock)
+    private boolean draining = false;    // A drain of the messages is waiting for (or running on) a match thread
+    private int round = Integer.MAX_VALUE;  // Planned round (Tournament.Policy.ROUNDS), unplanned by default
+    private long startTime = 0, endTime = 0;  // When the match was played (System.nanoTime)
+    private int seq = 0;        // Number of state changes (moves) so far - numbers the deltas
+    private Spectators spectators = null;  // Who else is told about the match (null if nobody can be)
+    private String key = null;  // The match as spectators know it: TID:HID:AID
     
-    public Match(Player h, Player a, Game g) {
+    public Match(Player h, Player a, GameFactory g, Tournament tour) {
 	this.home = h;
 	this.away = a;
-	this.game = g;
+	this.gameFactory = g;
+	this.tour = tour;
+	this.stats = (tour != null) ? tour.getStats() : null;
 	this.state = State.NOT_STARTED;
 	this.errorCount = 0;
-	this.messages = new ArrayDeque<Message>();
+	this.messages = null;  // Created when the match starts
     }
 
+    /**
+     * Start the match.  There is no loop: from here on the match is driven
+     * by the moves the players post (see postMessage) so no thread is tied
+     * up while the players think.
+     **/
     public Integer call() {
-	state = State.IN_PROGRESS;
-	home.postMessage("@GAME:START:H:"+away.getName());
-	away.postMessage("@GAME:START:A:"+home.getName());
-	
-	while (!game.isDone()) {
-	    String state = game.getState(false);
-	    if (state != null) {
-		// The state has changed since last call
-		home.postMessage("@GAME:STATE:" + state);
-		away.postMessage("@GAME:STATE:" + state);
-	    }
-	    processMessages();
-	    try { Thread.sleep(100); } catch (Exception e) { }  // Don't hog resources...
-	}
-
-	// Determine winner, and set state
-	int winner = game.getWinner();
-	char r;
-	if (winner == 0) {
-	    state = State.HOME_WIN; r = 'H';
-	} else if (winner == 1) {
-	    state = State.AWAY_WIN;; r = 'A';
-	} else {
-	    if (winner < -1) {
-		// Something went amiss!
-		debug("Game went awry!  Recording it as a TIE anyway.");
+	boolean finished;
+	Spectators s = (tour != null) ? tour.getSpectators() : null;  // Before the match lock (see finish)
+	synchronized (this) {
+	    startTime = System.nanoTime();
+	    if (stats != null) stats.matchStarted();
+	    game = gameFactory.newGame();
+	    messages = new ArrayDeque<Message>();
+	    seq = 0;
+	    state = State.IN_PROGRESS;
+	    home.postMessage("@GAME:START:H:"+away.getName());
+	    away.postMessage("@GAME:START:A:"+home.getName());
+	    if ((spectators = s) != null) {
+		key = tour.getID() + ":" + home.getID() + ":" + away.getID();
+		spectators.publish(tour.getID(), key, "START", home.getName() + ":" + away.getName());
 	    }
-	    state = State.TIE; r = 'T';
+	    finished = processMessages();  // Sends the initial state
 	}
+	if (finished) finish();
+	return new Integer(0);
+    }
 
-	// Inform the players
-	home.postMessage("@GAME:RESULT:" + r);
-	away.postMessage("@GAME:RESULT:" + r);
-	
-	// Free the players for another Match...
+    // Free the players for another Match...
+    private void finish() {
 	home.clearMatch();
 	away.clearMatch();
-	return new Integer(0);
+	if (stats != null) stats.matchFinished();
+	if (tour != null) tour.matchFinished(this);
     }
 
     /** Accessor and mutator methods **/
     public State getState() { return state; }
     public Player getHome() { return home; }
     public Player getAway() { return away; }
+    int getRound() { return round; }
+    void setRound(int round) { this.round = round; }
+    synchronized long getStartTime() { return startTime; }
+    synchronized long getEndTime() { return endTime; }
+
+    /**
+     * The match was played before (its result is from the journal).
+     **/
+    synchronized void restore(State result) {
+	if (state == State.NOT_STARTED) state = result;
+    }
+
+    /**
+     * Send the player the full state of the game (it reconnected or its
+     * copy of the state is out of sync).
+     **/
+    public synchronized void resync(Player p) {
+	if (game == null) {
+	    p.postMessage("@GAME:ERROR:This match is not in progress.");
+	    return;
+	}
+	p.postMessage(snapshot(p, game.getState(true)));  // Changes are always broadcast already
+    }
+
+    /**
+     * Show a new spectator the match so far (if it is in progress): the
+     * start and the current state.
+     **/
+    synchronized void showTo(ServerConnection c) {
+	if (game == null || key == null) return;
+	c.postMessageLn("@WATCH:START:" + key + ":" + home.getName() + ":" + away.getName());
+	c.postMessageLn("@WATCH:STATE:" + key + ":" + seq + ":" + game.getState(true));
+    }
+
+    /**
+     * The player reconnected during the match: start it again on its side
+     * (its client lost the game) with the full state.
+     **/
+    public synchronized void rejoin(Player p) {
+	if (game == null) return;  // Over already
+	p.postMessage(p == home ? "@GAME:START:H:" + away.getName() : "@GAME:START:A:" + home.getName());
+	p.postMessage(snapshot(p, game.getState(true)));
+    }
 
     // Post a message from a Player to the Game.
-    public synchronized void postMessage(Player originator, String message) {
-	messages.addLast(new Message(originator, message));   // Store the message in the messages Queue.
+    // It is processed on a match thread (see drain), so the caller - an I/O
+    // thread usually - goes straight back to its connections.
+    public void postMessage(Player originator, String message) {
+	synchronized (this) {
+	    if (messages == null) {
+		// Match is not being played (not started yet or already over)
+		originator.postMessage("@GAME:ERROR:This match is not in progress.");
+		return;
+	    }
+	    messages.addLast(new Message(originator, message));   // Store the message in the messages Queue.
+	    if (processing || draining) return;  // The loop (or the drain waiting) gets to it
+	    draining = true;
+	}
+	ServerExecutors executors = (tour != null) ? tour.getExecutors() : null;
+	try {
+	    if (executors != null) {
+		executors.match().execute(this::drain);
+		return;
+	    }
+	} catch (RejectedExecutionException e) {
+	    // The match threads are swamped: process it here rather than lose the move
+	}
+	drain();
+    }
+
+    // Process the messages posted so far (and those posted meanwhile).
+    private void drain() {
+	boolean finished;
+	synchronized (this) {
+	    draining = false;
+	    if (game == null) return;  // Over already
+	    finished = processMessages();
+	}
+	if (finished) finish();
     }
 
-    // Process the messages that were received from Players.
-    public synchronized void processMessages() {
-	while (!messages.isEmpty()) {
-	    Message m = messages.removeFirst();
-	    if (m.p != home && m.p != away) {
-		// Some other player sent it???
-		m.p.postMessage("@GAME:ERROR:[Programming error] This player is not part of this game.");
-	    } else {
-		String response = game.processMove(m.p == home ? 0 : 1, m.message);
-		m.p.postMessage("@GAME:" + response);
-		if (response.startsWith("ERROR")) {
-		    // There was an error with the move, have there been too many?
-		    if (errorCount++ > 5) {
-			// Player forfeits
-			game.resign(m.p == home ? 0 : 1);
+    // Process the messages that were received from Players, sending the
+    // state (or the move, see broadcastState) to both players whenever it changes.
+    // Returns true if the game is over (the result has been sent).
+    private synchronized boolean processMessages() {
+	processing = true;
+	try {
+	    broadcastState(null, null);
+	    while (!messages.isEmpty() && !game.isDone()) {
+		Message m = messages.removeFirst();
+		if (m.p != home && m.p != away) {
+		    // Some other player sent it???
+		    m.p.postMessage("@GAME:ERROR:[Programming error] This player is not part of this game.");
+		} else {
+		    String response = game.processMove(m.p == home ? 0 : 1, m.message);
+		    m.p.postMessage("@GAME:" + response);
+		    if (stats != null) stats.moveProcessed(System.nanoTime() - m.time);
+		    if (response.startsWith("ERROR")) {
+			// There was an error with the move, have there been too many?
+			if (errorCount++ > 5) {
+			    // Player forfeits
+			    game.resign(m.p == home ? 0 : 1);
+			} else {
+			    // resend game state (as a reminder)
+			    m.p.postMessage(snapshot(m.p, game.getState(true)));
+			}
 		    } else {
-			// resend game state (as a reminder)
-			m.p.postMessage("@GAME:STATE:" + game.getState(true));
+			errorCount = 0;  // Reset it.
 		    }
-		} else {
-		    errorCount = 0;  // Reset it.
 		}
+		if (!game.isDone()) broadcastState(m.p, m.message);  // The final state is announced by the result
 	    }
+	    if (!game.isDone()) return false;
+	    recordResult();
+	    return true;
+	} finally {
+	    processing = false;
 	}
     }
 
+    // Send the state to both players - if it has changed since it was last sent.
+    // Players following the game by deltas just get the move that changed it
+    // (from mover, null for the initial state) numbered by seq.
+    private void broadcastState(Player mover, String move) {
+	String state = game.getState(false);
+	if (state == null) return;
+	if (mover != null) seq++;
+	String delta = (mover != null && game instanceof DeltaGame) ?
+	    "@GAME:DELTA:" + seq + ":" + (mover == home ? 0 : 1) + ":" + move : null;
+	for (Player p: new Player[] { home, away })
+	    p.postMessage(delta != null && p.wantsDeltas() ? delta : snapshot(p, state));
+	if (spectators != null) spectators.publish(tour.getID(), key, "STATE", seq + ":" + state);
+    }
+
+    // The full state, as the player expects it: numbered (@GAME:SYNC) when it follows deltas.
+    private String snapshot(Player p, String state) {
+	return p.wantsDeltas() ? "@GAME:SYNC:" + seq + ":" + state : "@GAME:STATE:" + state;
+    }
+
+    // The game is over: determine winner, set state, inform the players and release the game.
+    private void recordResult() {
+	int winner = game.getWinner();
+	char r;
+	if (winner == 0) {
+	    state = State.HOME_WIN; r = 'H';
+	} else if (winner == 1) {
+	    state = State.AWAY_WIN; r = 'A';
+	} else {
+	    if (winner < -1) {
+		// Something went amiss!
+		debug("Game went awry!  Recording it as a TIE anyway.");
+	    }
+	    state = State.TIE; r = 'T';
+	}
+
+	// Inform the players
+	home.postMessage("@GAME:RESULT:" + r);
+	away.postMessage("@GAME:RESULT:" + r);
+	if (spectators != null) spectators.publish(tour.getID(), key, "RESULT", String.valueOf(r));
+
+	// Release the game (only the result is needed from now on)
+	game = null;
+	messages = null;
+	endTime = System.nanoTime();
+    }
+
     /**
      * Returns a "unique" header string - for debugging mainly.
      **/
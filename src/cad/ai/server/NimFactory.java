@@ -18,4 +18,5 @@ import cad.ai.game.*;
  ***********************************************************/
 public class NimFactory implements GameFactory {
     public Game newGame() { return new NimGame(); }
+    public Game newClientGame(int p, AI ai) { return new NimGame(p, null, ai, false, 0); }
 }
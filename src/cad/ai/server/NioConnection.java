@@ -0,0 +1,252 @@
+package cad.ai.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/************************************************************
+ * A client connection served by a NioServer I/O thread.
+ *   Bytes are read into a buffer as they arrive and split into protocol
+ *   lines which are handed to the ProtocolHandler.  Responses may be
+ *   posted from any thread; they are queued and written by the I/O thread
+ *   (which only asks to be told about writability while output is pending).
+ *   A client that lets more than MAX_PENDING pile up is closed.
+ *   After the @PROTOCOL:BINARY handshake both directions use the frames of
+ *   the BinaryProtocol instead of lines.
+ *   Everything but postMessageLn runs on the I/O thread.
+ ***********************************************************/
+class NioConnection implements ServerConnection {
+    private static final int BUFFER_SIZE = 8192;     // Bytes read at a time
+    private static final int MAX_LINE = 64 * 1024;   // Longest line (or frame) accepted (protects the server)
+
+    private final SocketChannel channel;
+    private final NioServer.IoLoop loop;
+    private final GameServer server;
+    private final ProtocolHandler handler;
+    private final String name;
+    private SelectionKey key = null;
+
+    private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    private byte[] line = new byte[128];  // The (partial) line - or frames - read so far
+    private int lineLength = 0;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger queued = new AtomicInteger();  // Buffers in out (its size() counts them one by one)
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean overflowed = new AtomicBoolean(false);  // More than MAX_PENDING were queued
+    private volatile long lastRead = System.nanoTime();  // When the client last sent something
+    private boolean closeAfterWrite = false;
+    private volatile boolean binary = false;  // Using the binary protocol (see useBinary)
+
+    NioConnection(SocketChannel channel, NioServer.IoLoop loop, GameServer server) {
+	this.channel = channel;
+	this.loop = loop;
+	this.server = server;
+	this.handler = server.newHandler(this);
+	String remote;
+	try {
+	    remote = String.valueOf(channel.getRemoteAddress());
+	} catch (IOException e) {
+	    remote = "?";
+	}
+	this.name = "Client (" + remote + ")";
+    }
+
+    void setKey(SelectionKey key) { this.key = key; }
+
+    public String toString() { return name; }
+
+    public long getLastRead() { return lastRead; }
+
+    public int pendingMessages() { return queued.get(); }
+
+    /**
+     * Post a message to be transmitted to the Client (by the I/O thread).
+     * This also appends a new line to end of message (or frames it, see useBinary).
+     **/
+    public void postMessageLn(String message) {
+	if (closed.get()) return;
+	synchronized (out) {
+	    if (queued.get() >= MAX_PENDING) {
+		overflow();
+		return;
+	    }
+	    // Encoded and queued together so no message switches format out of order
+	    out.add(ByteBuffer.wrap(binary ? BinaryProtocol.encode(message)
+				    : (message + "\n").getBytes(StandardCharsets.UTF_8)));
+	    queued.incrementAndGet();
+	}
+	if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+    }
+
+    /**
+     * Post a message shared with other connections: its bytes are queued
+     * as they are (not encoded again).
+     **/
+    public void postShared(SharedMessage message) {
+	if (closed.get()) return;
+	synchronized (out) {
+	    if (queued.get() >= MAX_PENDING) {
+		overflow();
+		return;
+	    }
+	    out.add(binary ? message.frameBuffer() : message.lineBuffer());
+	    queued.incrementAndGet();
+	}
+	if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+    }
+
+    /**
+     * Acknowledge (in text) and switch both directions to binary frames.
+     * Called by the handler on the I/O thread so read() sees the switch
+     * before the next byte.
+     **/
+    public boolean useBinary() {
+	synchronized (out) {
+	    if (!binary) {
+		postMessageLn(BinaryProtocol.HANDSHAKE);
+		binary = true;
+	    }
+	}
+	return true;
+    }
+
+    // The client is not reading what it is sent: close it (on the I/O
+    // thread, as the poster may be holding a match or tournament lock).
+    private void overflow() {
+	if (!overflowed.compareAndSet(false, true)) return;
+	if (server.getStats() != null) server.getStats().connectionOverflowed();
+	loop.execute(this::close);
+    }
+
+    /**
+     * Close the connection once all pending output has been written.
+     **/
+    void closeAfterWrite() {
+	closeAfterWrite = true;
+	flush();
+    }
+
+    /**
+     * Read what is available and process every complete line.
+     **/
+    void read() {
+	try {
+	    int n = channel.read(in);
+	    if (n < 0) {
+		close();  // End of transmission
+		return;
+	    }
+	    lastRead = System.nanoTime();
+	    in.flip();
+	    while (in.hasRemaining() && !closed.get() && !closeAfterWrite) {
+		if (binary) {
+		    readFrames();
+		    break;
+		}
+		byte b = in.get();
+		if (b == '\n') {
+		    int length = lineLength;
+		    if (length > 0 && line[length - 1] == '\r') length--;
+		    String message = new String(line, 0, length, StandardCharsets.UTF_8);
+		    lineLength = 0;
+		    handler.processInput(message);
+		} else {
+		    if (lineLength == line.length) {
+			if (lineLength >= MAX_LINE) {
+			    postMessageLn("@ERROR:Line too long.");
+			    closeAfterWrite();
+			    break;
+			}
+			line = Arrays.copyOf(line, Math.min(2 * line.length, MAX_LINE));
+		    }
+		    line[lineLength++] = b;
+		}
+	    }
+	    in.clear();
+	} catch (IOException e) {
+	    close();
+	}
+    }
+
+    /**
+     * Process every complete frame in the input (keeping a partial one for later).
+     **/
+    private void readFrames() throws IOException {
+	while (in.hasRemaining() && !closed.get() && !closeAfterWrite) {
+	    if (lineLength == line.length) {
+		if (lineLength >= MAX_LINE) {
+		    postMessageLn("@ERROR:Frame too long.");
+		    closeAfterWrite();
+		    return;
+		}
+		line = Arrays.copyOf(line, Math.min(2 * line.length, MAX_LINE));
+	    }
+	    int n = Math.min(in.remaining(), line.length - lineLength);
+	    in.get(line, lineLength, n);
+	    lineLength += n;
+
+	    int start = 0, length;
+	    while (!closed.get() && !closeAfterWrite &&
+		   (length = BinaryProtocol.frameLength(line, start, lineLength - start)) > 0) {
+		if (length > MAX_LINE) {
+		    postMessageLn("@ERROR:Frame too long.");
+		    closeAfterWrite();
+		    return;
+		}
+		String message = BinaryProtocol.decode(line, start);
+		start += length;
+		handler.processInput(message);
+	    }
+	    System.arraycopy(line, start, line, 0, lineLength - start);
+	    lineLength -= start;
+	}
+    }
+
+    /**
+     * Write as much of the pending output as the channel accepts.
+     **/
+    void flush() {
+	flushScheduled.set(false);
+	if (closed.get() || key == null) return;
+	try {
+	    ByteBuffer b;
+	    while ((b = out.peek()) != null) {
+		channel.write(b);
+		if (b.hasRemaining()) {
+		    // Socket buffer is full: continue when the channel is writable again
+		    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		    return;
+		}
+		out.poll();
+		queued.decrementAndGet();
+	    }
+	    key.interestOps(SelectionKey.OP_READ);
+	    if (closeAfterWrite) close();
+	} catch (IOException e) {
+	    close();
+	}
+    }
+
+    /**
+     * Close the connection (and detach it from its player).  Any thread may close it.
+     **/
+    public void close() {
+	if (!closed.compareAndSet(false, true)) return;
+	if (key != null) key.cancel();
+	try {
+	    channel.close();
+	} catch (IOException e) { }
+	out.clear();
+	queued.set(0);
+	handler.detach();
+	server.removeConnection(this);
+    }
+}
@@ -0,0 +1,121 @@
+package cad.ai.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/***********************************************************
+ * Event-driven networking core for the GameServer.
+ *   Connections are accepted on the calling thread and spread (round
+ *   robin) over a small fixed set of I/O threads.  Each I/O thread owns a
+ *   Selector and only wakes up when one of its channels can be read or
+ *   written (or when another thread hands it work), so idle connections
+ *   cost nothing and no connection is polled.
+ ***********************************************************/
+class NioServer {
+    private GameServer server;
+    private int port;
+    private IoLoop[] loops;
+
+    /**
+     * One I/O thread: a Selector and the connections registered with it.
+     **/
+    class IoLoop implements Runnable {
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	IoLoop() throws IOException {
+	    selector = Selector.open();
+	}
+
+	/**
+	 * Run the given task on this I/O thread (as soon as possible).
+	 **/
+	void execute(Runnable task) {
+	    tasks.add(task);
+	    selector.wakeup();
+	}
+
+	// Register a newly accepted channel with this loop.
+	private void register(SocketChannel channel) {
+	    execute(() -> {
+		NioConnection c = new NioConnection(channel, this, server);
+		try {
+		    channel.configureBlocking(false);
+		    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);  // Small messages: no Nagle delay
+		    c.setKey(channel.register(selector, SelectionKey.OP_READ, c));
+		} catch (IOException e) {
+		    c.close();
+		    return;
+		}
+		if (!server.addConnection(c)) {
+		    c.postMessageLn("@ERROR:Maximum number of clients reached.");
+		    c.closeAfterWrite();
+		}
+	    });
+	}
+
+	public void run() {
+	    while (true) {
+		try {
+		    selector.select();
+		    Runnable task;
+		    while ((task = tasks.poll()) != null) task.run();
+
+		    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		    while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			NioConnection c = (NioConnection) key.attachment();
+			if (key.isValid() && key.isReadable()) c.read();
+			if (key.isValid() && key.isWritable()) c.flush();
+		    }
+		} catch (Exception e) {
+		    // Never let one bad connection take the loop (and all its connections) down
+		    System.err.println("I/O loop error: " + e.getMessage());
+		}
+	    }
+	}
+    }
+
+    /**
+     * @param server    The game server (players, tournaments, ...)
+     * @param port      The port to listen on
+     * @param ioThreads Number of I/O threads to spread the connections over
+     **/
+    NioServer(GameServer server, int port, int ioThreads) {
+	this.server = server;
+	this.port = port;
+	this.loops = new IoLoop[Math.max(1, ioThreads)];
+    }
+
+    /**
+     * Start the I/O threads and accept connections (forever).
+     **/
+    void run() throws IOException {
+	for (int i = 0; i < loops.length; i++) {
+	    loops[i] = new IoLoop();
+	    server.getExecutors().io().execute(loops[i]);
+	}
+
+	ServerSocketChannel serverChannel = ServerSocketChannel.open();
+	serverChannel.bind(new InetSocketAddress(port), GameServer.BACKLOG);
+	int next = 0;
+	while (true) {
+	    try {
+		SocketChannel channel = serverChannel.accept();  // Blocks until a client arrives
+		loops[next].register(channel);
+		next = (next + 1) % loops.length;
+	    } catch (IOException e) {
+		System.err.println("I/O Error: Terminating connection.");
+		System.err.println("  Message: " + e.getMessage());
+	    }
+	}
+    }
+}
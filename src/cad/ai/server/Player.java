@@ -11,6 +11,8 @@
 
 package cad.ai.server;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /***********************************************************
  * The Player represents a single individual bound to at most
  * one tournament.
@@ -18,13 +20,14 @@ package cad.ai.server;
 public class Player {
     private int id;  // Useful if player needs to reconnect.
     private String name = null;
-    private ClientConnection conn = null; 
+    private PlayerConnection conn = null; 
     private int wins = 0;   // Wins for THIS tournament.
     private int losses = 0; // Losses for THIS tournament.
     private int ties = 0;   // Ties for THIS tournament.
-    private static int nextID = 0;   // Next ID for player
-    private RRTournament tour = null;  // Player belongs to just ONE tournament.
+    private static final AtomicInteger lastID = new AtomicInteger();  // Last ID handed out (to a player)
+    private Tournament tour = null;  // Player belongs to just ONE tournament.
     private Match match = null;   // What match the player is currently assigned to...
+    private volatile boolean deltas = false;  // Follows games by moves (@GAME:DELTA) rather than states
 
     /**
      * Default Constructor
@@ -33,6 +36,15 @@ public class Player {
 	this.id = getNextID();
     }
 
+    /**
+     * A player registered before (rebuilt from the journal): new players
+     * get IDs after it.
+     **/
+    Player(int id) {
+	this.id = id;
+	claimID(id);
+    }
+
     /*** Accessor and mutator methods ***/
     public String getName() { return name; }
     public void setName(String name) { this.name = name; }
@@ -41,10 +53,13 @@ public class Player {
     public int getLosses() { return losses; }
     public int getTies() { return ties; }
     public int getTotalGames() { return wins + losses + ties; }
-    public ClientConnection getConnection() { return conn; }
-    synchronized public void setConnection(ClientConnection conn) { this.conn = conn; }
-    public RRTournament getTour() { return tour; }
-    synchronized public void setTour(RRTournament tour) { this.tour = tour; }
+    public int getScore() { return 3 * wins + ties; }  // W = 3 pts, T = 1 pt (as in TourManager)
+    public PlayerConnection getConnection() { return conn; }
+    synchronized public void setConnection(PlayerConnection conn) { this.conn = conn; }
+    public boolean wantsDeltas() { return deltas; }
+    public void setDeltas(boolean deltas) { this.deltas = deltas; }
+    public Tournament getTour() { return tour; }
+    synchronized public void setTour(Tournament tour) { this.tour = tour; }
 
     // Assign a match to player but ONLY if it is currently not assigned.
     // Returns true if this assignment is successful and false if not (when player already has a match)
@@ -53,6 +68,11 @@ public class Player {
     }
     public Match getMatch() { return match; }
 
+    // Count the result of a finished match (kept up to date by the tournament)
+    void addWin() { wins++; }
+    void addLoss() { losses++; }
+    void addTie() { ties++; }
+
     // Removes player from this current match...
     synchronized public void clearMatch() {
 	match = null;
@@ -66,5 +86,6 @@ public class Player {
 	return true;
     }
     
-    synchronized static private int getNextID() { return ++nextID; }
+    static private int getNextID() { return lastID.incrementAndGet(); }
+    static void claimID(int id) { lastID.accumulateAndGet(id, Math::max); }
 }
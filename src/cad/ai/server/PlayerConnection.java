@@ -0,0 +1,14 @@
+package cad.ai.server;
+
+/***********************************************************
+ * Where the messages for a Player go.  Normally a ClientConnection
+ * to a remote client but it can also be an in-process client
+ * (see TournamentSimulator).
+ ***********************************************************/
+public interface PlayerConnection {
+    /**
+     * Post a message to be transmitted to the Client.
+     * This also appends a new line to end of message.
+     **/
+    public void postMessageLn(String message);
+}
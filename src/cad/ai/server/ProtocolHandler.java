@@ -0,0 +1,421 @@
+package cad.ai.server;
+
+/************************************************************
+ * Processes the commands a client sends (see ServerProtocol.txt) on
+ * behalf of its connection - whatever the connection is (polled socket,
+ * NIO channel, ...).  Responses are posted back through the connection.
+ ***********************************************************/
+class ProtocolHandler {
+    private GameServer server = null;        // The game server
+    private ServerConnection conn = null;    // Where responses go
+    private Player player = null;            // The player (once registered)
+    private RateLimiter limiter = null;      // Commands allowed (null if unlimited)
+    private boolean throttled = false;       // Told it is over the limit (until a command is allowed again)
+    private boolean deltas = false;          // Client follows games by deltas (@PROTOCOL:DELTA)
+    private boolean watching = false;        // Client has watched matches (@WATCH)
+
+    ProtocolHandler(GameServer server, ServerConnection conn) {
+	this.server = server;
+	this.conn = conn;
+	this.limiter = server.newRateLimiter();
+    }
+
+    /**
+     * The connection is closing - detach it from its player (so the player can reconnect).
+     **/
+    synchronized void detach() {
+	if (player != null && player.getConnection() == conn) player.setConnection(null);
+	if (watching) server.getSpectators().unwatch(conn);
+    }
+
+    void postMessageLn(String message) {
+	conn.postMessageLn(message);
+    }
+
+    private void debug(String message) {
+	System.out.println("DEBUG: " + conn + ": " + message);
+    }
+
+    /**
+     * Process the message provided.  Uses protocol described in ServerProtocol.txt
+     **/
+    synchronized void processInput(String message) {
+	if (limiter != null) {
+	    if (!limiter.tryAcquire()) {
+		// Once per burst over the limit: answering each would send more than is received
+		if (!throttled) postMessageLn("@ERROR:Rate limit exceeded.  Command ignored.");
+		throttled = true;
+		return;
+	    }
+	    throttled = false;
+	}
+	try {
+	    String[] pieces = message.split(":", 5);
+	    processCommand(pieces[0].toUpperCase(), pieces);
+	} catch (Exception e) {
+	    postMessageLn("@ERROR:Error processing command.");
+	    debug(e.getMessage());
+	}
+    }
+
+    /**
+     * Process the command (pieces[0] in upper case) with its arguments pieces[1...]
+     **/
+    void processCommand(String command, String[] pieces) {
+	switch (command) {
+	case "@TOUR": processTournamentCommands(pieces); break;
+	case "@NEW PLAYER": setNewPlayer(); break;
+	case "@PLAYER": setPlayer(pieces); break;
+	case "@NAME": setName(pieces); break;
+	case "@GAME": processGameCommands(pieces); break;
+	case "@GET NAME": getName(pieces); break;
+	case "@PING": postMessageLn("@PONG"); break;
+	case "@PONG": break; // Ignore it for now...
+	case "@POOLS": postMessageLn("@POOLS:" + server.getExecutors().metrics()); break;
+	case "@CONNECTIONS": postMessageLn("@CONNECTIONS:" + server.connectionStats()); break;
+	case "@STATS": postMessageLn("@STATS:" + server.getStats()); break;
+	case "@PROTOCOL": setProtocol(pieces); break;
+	case "@WATCH": watch(pieces); break;
+	case "@UNWATCH": if (watching) server.getSpectators().unwatch(conn); break;
+	case "@IDBASE": postMessageLn("@IDBASE:" + server.getIDBase()); break;
+	case "@TOURS": postMessageLn("@TOURS:" + server.tournaments()); break;
+	case "@TALLIES": postMessageLn("@TALLIES:" + server.tallies()); break;
+	default: postMessageLn("@ERROR:Unrecognized command.");
+	}
+    }
+
+    /**
+     * Switch to the requested wire protocol (if the connection supports it)
+     * or turn on game deltas.  The connection acknowledges a switch to binary
+     * itself; otherwise we stay with text.
+     **/
+    private void setProtocol(String[] pieces) {
+	String protocol = (pieces.length < 2) ? "" : pieces[1].toUpperCase();
+	switch (protocol) {
+	case "BINARY":
+	    if (!conn.useBinary()) postMessageLn(BinaryProtocol.DECLINED);
+	    break;
+	case "DELTA":
+	    deltas = true;
+	    if (player != null) player.setDeltas(true);
+	    postMessageLn("@PROTOCOL:DELTA");
+	    break;
+	default:
+	    postMessageLn("@ERROR:Protocol not recognized.");
+	}
+    }
+
+    /**
+     * Watch the matches: ALL of them, those of TOUR:TID or MATCH:TID:HID:AID.
+     * The matches in progress are shown right away (from their current state).
+     **/
+    private void watch(String[] pieces) {
+	String what = (pieces.length < 2) ? "" : pieces[1].toUpperCase();
+	Spectators spectators = server.getSpectators();
+	if (what.equals("ALL")) {
+	    spectators.watchAll(conn);
+	    watching = true;
+	    server.showMatches(conn);
+	    return;
+	}
+	if (!what.equals("TOUR") && !(what.equals("MATCH") && pieces.length > 4)) {
+	    postMessageLn("@ERROR:WATCH needs ALL, TOUR:TID or MATCH:TID:HID:AID.");
+	    return;
+	}
+	int tid = Integer.parseInt(pieces[2]);
+	Tournament tour = server.getTournament(tid);
+	if (tour == null) {
+	    postMessageLn("@ERROR:Tournament not found.");
+	    return;
+	}
+	watching = true;
+	if (what.equals("TOUR")) {
+	    spectators.watchTour(conn, tid);
+	    tour.showTo(conn);
+	    return;
+	}
+	int hid = Integer.parseInt(pieces[3]), aid = Integer.parseInt(pieces[4]);
+	spectators.watchMatch(conn, tid + ":" + hid + ":" + aid);
+	Player home = server.getPlayer(hid);
+	Match m = (home != null && home.getTour() == tour) ? home.getMatch() : null;
+	if (m != null && m.getHome() == home && m.getAway().getID() == aid) m.showTo(conn);
+    }
+
+    /**
+     * Process the various tournament commands outlined in ServerProtocol.
+     * Use pieces[1...]  -- skipping pieces[0] which is @TOUR
+     **/
+    private void processTournamentCommands(String[] pieces) {
+	if (pieces.length < 2) {
+	    postMessageLn("@ERROR:A subcommand is required for TOUR.");
+	    return;
+	}
+	String command = pieces[1].toUpperCase();
+	switch (command) {
+	case "CREATE": createTournament(pieces); break;
+	case "START": startTournament(); break;
+	case "PAUSE": pauseTournament(); break;
+	case "END": endTournament(); break;
+	case "REPORT": reportTournament(); break;
+	case "STANDINGS": standingsTournament(pieces); break;
+	case "SUBSCRIBE": subscribeTournament(true); break;
+	case "UNSUBSCRIBE": subscribeTournament(false); break;
+	case "MATCHES LEFT": matchesLeftTournament(); break;
+	case "MAKESPAN": makespanTournament(); break;
+	case "JOIN":  joinTournament(pieces); break;
+	default: postMessageLn("@ERROR:Unrecognized TOUR sub-command.");
+	}
+    }
+
+    /**
+     * Create a tournament with game type TYPE pieces[2] (passed as a string to GameServer).
+     * The options that follow are a scheduling policy and/or a format, in either order.
+     * ID # is returned back to sender - for people to join.
+     **/
+    private void createTournament(String[] pieces) {
+	if (pieces.length < 3) {
+	    postMessageLn("@ERROR:A TYPE must be specified.");
+	    return;
+	}
+	if (player == null) {
+	    postMessageLn("@ERROR:No player set yet (to own the command).");
+	    return;
+	}
+	Tournament.Policy policy = Tournament.Policy.GREEDY;
+	String format = "RR";
+	for (int i = 3; i < pieces.length; i++) {
+	    try {
+		policy = Tournament.Policy.valueOf(pieces[i].toUpperCase());
+	    } catch (IllegalArgumentException e) {
+		format = pieces[i];  // Not a policy, so a format (checked by the server)
+	    }
+	}
+	Tournament tour = server.createTournament(pieces[2], player, format);
+	if (tour == null) {
+	    postMessageLn("@ERROR:Type, policy or format not recognized.");
+	} else {
+	    tour.setPolicy(policy);
+	    postMessageLn("@TID:" + tour.getID());
+	}
+    }
+
+    private void startTournament() {
+	Tournament tour = verifyTourOwner();
+	if (tour != null) tour.setActive(true);
+    }
+
+    private void pauseTournament() {
+	Tournament tour = verifyTourOwner();
+	if (tour != null) tour.setActive(false);
+    }
+
+    private void endTournament() {
+	Tournament tour = verifyTourOwner();
+	if (tour != null) tour.terminate();
+    }
+
+    private void reportTournament() {
+	Tournament tour = verifyTourOwner();
+	if (tour != null)
+	    postMessageLn("@REPORT:" + tour.report());
+    }
+
+    /**
+     * Page pieces[2] (default 1) of size pieces[3] of the standings.
+     * Any player of the tournament may ask.
+     **/
+    private void standingsTournament(String[] pieces) {
+	Tournament tour = verifyTour();
+	if (tour == null) return;
+	int page = (pieces.length > 2) ? Integer.parseInt(pieces[2]) : 1;
+	int size = (pieces.length > 3) ? Integer.parseInt(pieces[3]) : Tournament.DEFAULT_PAGE_SIZE;
+	postMessageLn("@STANDINGS:" + tour.standings(page, size));
+    }
+
+    /**
+     * Start (or stop) pushing the results of the player's tournament to it.
+     **/
+    private void subscribeTournament(boolean subscribe) {
+	Tournament tour = verifyTour();
+	if (tour == null) return;
+	if (subscribe) tour.subscribe(player); else tour.unsubscribe(player);
+    }
+
+    private void matchesLeftTournament() {
+	Tournament tour = verifyTourOwner();
+	if (tour != null)
+	    postMessageLn("@MESSAGE: There are " + tour.matchesLeft() + " matches left to complete.");
+    }
+
+    private void makespanTournament() {
+	Tournament tour = verifyTourOwner();
+	if (tour != null)
+	    postMessageLn("@MAKESPAN:" + tour.makespan());
+    }
+
+    /**
+     * Helper function to get player's tournament (owner or not)
+     *    Reports error if not available (and returns null)
+     **/
+    private Tournament verifyTour() {
+	if (player == null) {
+	    postMessageLn("@ERROR:No player set yet.");
+	    return null;
+	}
+	Tournament tour = player.getTour();
+	if (tour == null) postMessageLn("@ERROR:Player is not attached to a tournament.");
+	return tour;
+    }
+
+    /**
+     * Helper function to get player's tournament (IF they are owner)
+     *    Reports error if not available (and returns null)
+     **/
+    private Tournament verifyTourOwner() {
+	if (player == null) {
+	    postMessageLn("@ERROR:No player set yet (to own the command).");
+	    return null;
+	}
+
+	// Is this player the CREATOR of the Tournament?
+	Tournament tour = player.getTour();
+	if (tour == null) {
+	    postMessageLn("@ERROR:Player is not attached to a tournament.");
+	    return null;
+	} else if (!tour.isOwner(player)) {
+	    postMessageLn("@ERROR:Player is not the owner of the tournament.");
+	    return null;
+	} else {
+	    return tour;
+	}
+    }
+    
+    /**
+     * Join a tournament with given ID (pieces[2])
+     **/
+    private void joinTournament(String[] pieces) {
+	if (player == null) {
+	    postMessageLn("@ERROR:No player set yet (to own the command).");
+	    return;
+	}
+
+	if (player.getTour() != null) {
+	    postMessageLn("@ERROR:Player already assigned to a tournament.");
+	    return;
+	}
+	
+	// Join a tournament
+	int id = -1;  // Negative IDs not allowed --- sentinel value.
+	if (pieces.length > 2) {
+	    id = Integer.parseInt(pieces[2]);
+	}
+	
+	int tid = server.joinTournament(player, id);
+	if (tid >= 0)
+	    postMessageLn("@MESSAGE:Tournament " + tid + " successfully joined.");
+	else
+	    postMessageLn("@ERROR:Failed to join a tournament.");
+    }
+    
+    /**
+     * Register a NEW player.
+     **/
+    private void setNewPlayer() {
+	// This client is a new player
+	if (player != null) {
+	    // Player already registered
+	    postMessageLn("@ERROR:Player already registered for this account.");
+	} else {
+	    player = server.registerPlayer();
+	    player.setDeltas(deltas);
+	    player.setConnection(conn);  // So, Player can communicate with Client
+	    postMessageLn("@PID:"+player.getID());
+	}
+    }
+    
+    /**
+     * Set player using given ID (pieces[1]).
+     **/
+    private void setPlayer(String[] pieces) {
+	// This client is a returning player
+	if (pieces.length < 2) {
+	    postMessageLn("@ERROR:ID.  An ID is required for PLAYER.");
+	    return;
+	}
+	int id = Integer.parseInt(pieces[1]);
+	Player p = server.getPlayer(id);
+	if (p == null) {
+	    postMessageLn("@ERROR:ID was not recognized.");
+	} else if (p.getConnection() != null) {
+	    postMessageLn("@ERROR:Player already connected to another client.");
+	} else {
+	    player = p;
+	    player.setDeltas(deltas);
+	    player.setConnection(conn);   // So, Player can communicate with Client
+	    postMessageLn("@PID:"+player.getID());
+	    Match m = player.getMatch();
+	    if (m != null) m.rejoin(player);  // Back in the middle of a game: it needs the whole state
+	}
+    }
+    
+    /**
+     * Set the Player's name to pieces[1]
+     **/
+    private void setName(String[] pieces) {
+	if (player == null) {
+	    postMessageLn("@ERROR:No player set yet.");
+	} else if (pieces.length < 2) {
+	    postMessageLn("@ERROR:A NAME is required.");
+	} else {
+	    server.setName(player, pieces[1]);
+	}
+    }
+
+    /**
+     * Get the Player's name with given ID pieces[1]
+     **/
+    private void getName(String[] pieces) {
+	if (pieces.length < 2) {
+	    postMessageLn("@ERROR:An ID is required.");
+	} else {
+	    try {
+		int id = Integer.parseInt(pieces[1]);
+		Player p = server.getPlayer(id);
+		if (p == null) {
+		    postMessageLn("@ERROR:ID was not recognized.");
+		} else {
+		    postMessageLn("@NAME:" + p.getName() + ":" + id);
+		}
+	    } catch (NumberFormatException e) {
+		postMessageLn("@ERROR:Error parsing ID: " + pieces[1]);
+	    }
+	}
+    }
+    
+    
+    /**
+     * Send a game "move" message to player's current match...
+     **/
+    private void processGameCommands(String[] pieces) {
+	if (pieces.length < 2) {
+	    postMessageLn("@ERROR:A subcommand is required for GAME.");
+	    return;
+	}
+	if (player == null) {
+	    postMessageLn("@ERROR:No player set yet.");
+	    return;
+	}
+	Match m = player.getMatch();
+	if (m == null) {
+	    postMessageLn("@ERROR:Player is not playing in a match currently.");
+	    return;
+	}
+
+	String command = pieces[1].toUpperCase();
+	switch (command) {
+	case "MOVE": m.postMessage(player, pieces[2]); break;
+	case "RESYNC": m.resync(player); break;
+	default: postMessageLn("@ERROR:Unrecognized GAME sub-command.");
+	}
+    }
+}
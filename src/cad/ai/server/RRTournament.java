@@ -12,10 +12,7 @@
 package cad.ai.server;
 
 import java.util.ArrayList;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Callable;
+import java.util.HashMap;
 
 /***********************************************************
  * A basic round-robin tournament
@@ -28,147 +25,67 @@ import java.util.concurrent.Callable;
  * of the tournament.  So, match selection will be done by availability
  * of the two opposing players.  Whenever a match can be played, it will
  * be played - as long as the tournament is active.
+ * With Policy.ROUNDS the matches are played by round of a round-robin
+ * plan made (circle method) when the tournament starts; matches of later
+ * arrivals are played whenever both players are free.
+ * A tournament of n players has n(n-1) matches: see SwissTournament and
+ * KnockoutTournament for events too big for that.
  ***********************************************************/
-public class RRTournament implements Callable<Integer> {
-    private GameFactory gameFactory;   // Used to create new games
-    private ArrayList<Player> player;  // Players in this tournament
-    private ArrayList<Match> match;    // List of Matches (to play)
-    private boolean active;            // Is the tournament commencing.
-    private boolean quit;              // If true, terminate the tournament completely
-    private Player owner;              // The player that "owns" this tournament.
-    private int id;                    // The id of this tournament
-    private ExecutorService executor;    // Used to create new threads (for the various Matches)
+public class RRTournament extends Tournament {
+    private boolean planned = false;   // Rounds planned (Policy.ROUNDS)
 
-    private static int nextID = 0;     // Next ID for Tournament
-    
-    public RRTournament(GameFactory g, Player owner) {
-	player = new ArrayList<Player>();
-	match = new ArrayList<Match>();
-	active = false;
-	quit = false;
-	gameFactory = g;
-	this.owner = owner;
-	owner.setTour(this);
-	this.id = getNextID();
-	executor = Executors.newCachedThreadPool();
+    public RRTournament(GameFactory g, Player owner, ServerExecutors executors, ServerStats stats) {
+	this(g, owner, executors, stats, 0);
     }
 
+    RRTournament(GameFactory g, Player owner, ServerExecutors executors, ServerStats stats, int id) {
+	super(g, owner, executors, stats, id);
+    }
+
+    public String getFormat() { return "RR"; }
+
     /**
-     * Add the player to the tournament.
      * Create matches for this player against all other players currently in system.
      * This ensures a complete round-robin event.
-     * @returns True if successfully added, false if not (e.g. player already present)
      **/
-    public synchronized boolean addPlayer(Player p) {
-	if (player.contains(p))
-	    return false;
-	
+    protected void joined(Player p) {
 	// Create the new matched pairs (other,p and p,other)
 	for (Player other: player) {
-	    match.add(new Match(other, p, gameFactory.newGame()));
-	    match.add(new Match(p, other, gameFactory.newGame()));
+	    newMatch(other, p);
+	    newMatch(p, other);
 	}
-
-	p.setTour(this);  // Link this tournament to the player
-	player.add(p);    // Add the player to the list
-	return true;
-    }
-    
-    /*** Accessor and mutator methods ***/
-    public boolean isActive() { return active; }
-    public synchronized void setActive(boolean active) { this.active = active; }
-    public synchronized void terminate() {
-	this.quit = true;
-
-	// Inform all the players...
-	for (Player p: player) p.postMessage("@TOUR:END");
     }
-    
-    public int getID() { return this.id; }
-    public boolean isOwner(Player p) { return p == owner; }
-    
-    public Integer call() {
-	while (!quit) {
-	    try {
-		if (isActive()) startAvailableMatches();
-		Thread.sleep(1000);  // So it doesn't run constantly...
-	    } catch (InterruptedException e) { }
-	}
 
-	return new Integer(0);
+    protected void starting() {
+	if (policy == Policy.ROUNDS && !planned) planRounds();
     }
 
     /**
-     * Look through all matches and determine if any are ready to be played.
-     * This happens when two players are both currently not playing in another match.
-     * Start this match going.
-     * If all matches are completed it also finished the tournament...
+     * Plan the (double) round-robin in rounds using the circle method: one
+     * player stays put while the others rotate, giving n-1 rounds in which
+     * everybody plays once, followed by n-1 rounds of the return matches.
      **/
-    private synchronized void startAvailableMatches() {
-	for (Match m: match) {
-	    if (m.getState() == Match.State.NOT_STARTED) {
-		// Check if home player is free...
-		Player home = m.getHome();
-		Player away = m.getAway();
-		if (home.setMatch(m)) {
-		    // Home is available... how about away?
-		    if (away.setMatch(m)) {
-			// Away is also available... start'er up
-			debug("Starting match between " + home.getID() + " and " + away.getID());
-			FutureTask<Integer> task = new FutureTask<Integer>(m);
-			executor.execute(task);
-		    } else {
-			home.clearMatch();  // Free the home player for another match
-		    }
-		}
-	    }
-	}
-    }
+    private void planRounds() {
+	planned = true;
+	if (player.size() < 2) return;
+	HashMap<Player, HashMap<Player, Match>> byPair = new HashMap<Player, HashMap<Player, Match>>();
+	for (Player p: player) byPair.put(p, new HashMap<Player, Match>());
+	for (Match m: match) byPair.get(m.getHome()).put(m.getAway(), m);
 
-    /**
-     * Return how many matches are NOT completed.
-     **/
-    public synchronized int matchesLeft() {
-	int completed = 0;
-	for (Match m: match) {
-	    if (m.getState() != Match.State.NOT_STARTED &&
-		m.getState() != Match.State.IN_PROGRESS)
-		completed++;
-	}
-	return match.size() - completed;
-    }
-    
-    /**
-     * Generate a report on this tournament.  See ServerProtocol text for format.
-     * WARNING: Not done efficiently but number of matches should be small so not
-     * critical to improve performance unnecessarily...
-     **/
-    synchronized String report() {
-	String result = "";
-	boolean first = true;
-	for (Match m: match) {
-	    if (first) first = false; else result += ",";  // CSVs...
-	    Match.State state = m.getState();
-	    result += m.getHome().getID() + "/" + m.getAway().getID() + "/" +
-		((state == Match.State.NOT_STARTED) ? 'N' :
-		 (state == Match.State.IN_PROGRESS) ? 'I' :
-		 (state == Match.State.TIE) ? 'T' :
-		 (state == Match.State.HOME_WIN) ? 'H' :
-		 (state == Match.State.AWAY_WIN) ? 'A' : '?');
+	ArrayList<Player> circle = new ArrayList<Player>(player);
+	if (circle.size() % 2 == 1) circle.add(null);  // A bye
+	int n = circle.size();
+	for (int r = 0; r < n - 1; r++) {
+	    for (int i = 0; i < n / 2; i++) {
+		Player a = circle.get(i);
+		Player b = circle.get(n - 1 - i);
+		if (a == null || b == null) continue;  // Bye this round
+		if (r % 2 == 1) { Player t = a; a = b; b = t; }  // Alternate home and away
+		byPair.get(a).get(b).setRound(r);
+		byPair.get(b).get(a).setRound(r + n - 1);
+	    }
+	    circle.add(1, circle.remove(n - 1));  // Rotate all but the first
 	}
-	return result;
-    }
-
-    /**
-     * Returns a "unique" header string - for debugging mainly.
-     **/
-    private String header() {
-	return "Tour (" + getID() + "): ";
+	orderPending();
     }
-
-    synchronized private void debug(String message) {
-	System.out.println("DEBUG: " + header() + message);
-    }
-
-    synchronized static private int getNextID() { return ++nextID; }
 }
@@ -0,0 +1,36 @@
+package cad.ai.server;
+
+/***********************************************************
+ * A token bucket: up to burst commands at once and rate commands per
+ * second on average.  Each connection has its own, so a client sending
+ * too fast only slows itself down.
+ ***********************************************************/
+class RateLimiter {
+    private final double rate;     // Tokens added per second
+    private final double burst;    // Most tokens the bucket holds
+    private double tokens;         // Tokens available
+    private long last;             // When tokens was last brought up to date (System.nanoTime)
+
+    /**
+     * @param rate  Commands per second allowed (on average)
+     * @param burst Commands allowed at once (at least 1)
+     **/
+    RateLimiter(double rate, int burst) {
+	this.rate = rate;
+	this.burst = Math.max(1, burst);
+	this.tokens = this.burst;
+	this.last = System.nanoTime();
+    }
+
+    /**
+     * Take a token if there is one.  Returns false if the client is over its limit.
+     **/
+    synchronized boolean tryAcquire() {
+	long now = System.nanoTime();
+	tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+	last = now;
+	if (tokens < 1) return false;
+	tokens--;
+	return true;
+    }
+}
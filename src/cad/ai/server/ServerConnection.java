@@ -0,0 +1,42 @@
+package cad.ai.server;
+
+/***********************************************************
+ * A connection to a remote client, as tracked by the GameServer (which
+ * pings idle connections and reaps dead ones).
+ ***********************************************************/
+interface ServerConnection extends PlayerConnection {
+    /**
+     * Most messages waiting to be written to a client: one that lets more
+     * pile up is not reading and is closed (see ServerStats.connectionOverflowed).
+     * Well above Spectators.DROP_QUEUE, so a slow spectator is dropped first.
+     **/
+    public static final int MAX_PENDING = 8192;
+
+    /**
+     * When the client last sent anything (System.nanoTime).
+     **/
+    public long getLastRead();
+
+    /**
+     * Close the connection and release its resources (also removes it from the server).
+     **/
+    public void close();
+
+    /**
+     * Number of messages waiting to be written to the client.
+     **/
+    public int pendingMessages();
+
+    /**
+     * Switch the connection to the binary protocol (see BinaryProtocol),
+     * acknowledging with BinaryProtocol.HANDSHAKE (the last text message).
+     * Returns false (and stays with text) if the connection cannot.
+     **/
+    public boolean useBinary();
+
+    /**
+     * Post a message shared with other connections (already encoded, see
+     * SharedMessage) - as postMessageLn.
+     **/
+    public void postShared(SharedMessage message);
+}
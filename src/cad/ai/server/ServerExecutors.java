@@ -0,0 +1,146 @@
+package cad.ai.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***********************************************************
+ * All the threads of a GameServer, shared by every tournament and
+ * connection, in separately sized pools:
+ *   io        - the connections (or NIO I/O loops).  At most ioLimit
+ *               threads; beyond that connections are refused.
+ *   match     - starting matches and processing the moves posted to them
+ *               (short tasks: no thread waits for a player).  A fixed number
+ *               of threads and a bounded queue; when it is full the task is
+ *               rejected and the tournament tries again later (backpressure)
+ *               - or, for a move, the posting thread processes it.
+ *   scheduler - delayed and periodic work (retries, heartbeats, ...).
+ *   watch     - sending the matches to their spectators (see Spectators):
+ *               one thread and a bounded queue; when it is full an update
+ *               is rejected (and the spectators miss it) - the matches
+ *               never wait for it.
+ * No pool grows without bound.  metrics() reports the load of each pool.
+ ***********************************************************/
+public class ServerExecutors {
+    public static final int DEFAULT_MATCH_QUEUE = 1024;  // Matches waiting to start
+    public static final int WATCH_QUEUE = 4096;          // Updates waiting to go to the spectators
+
+    // Counts the tasks a pool rejected (and rejects them)
+    private static class CountingAbort implements RejectedExecutionHandler {
+	final AtomicLong rejected = new AtomicLong();
+
+	public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+	    rejected.incrementAndGet();
+	    throw new RejectedExecutionException("Pool is full (" + pool.getMaximumPoolSize() + " threads, " +
+						 pool.getQueue().size() + " queued)");
+	}
+    }
+
+    // Daemon threads named after their pool
+    private static class NamedThreads implements ThreadFactory {
+	private final String name;
+	private final AtomicInteger count = new AtomicInteger();
+
+	NamedThreads(String name) { this.name = name; }
+
+	public Thread newThread(Runnable r) {
+	    Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+	    t.setDaemon(true);
+	    return t;
+	}
+    }
+
+    private final ThreadPoolExecutor io;
+    private final ThreadPoolExecutor match;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ThreadPoolExecutor watch;
+    private final CountingAbort ioRejected = new CountingAbort();
+    private final CountingAbort matchRejected = new CountingAbort();
+    private final CountingAbort watchRejected = new CountingAbort();
+
+    /**
+     * @param ioLimit      Maximum number of I/O threads
+     * @param ioThreads    Where the I/O threads come from (null for ordinary threads)
+     * @param matchThreads Number of threads starting matches
+     * @param matchQueue   Number of matches that may wait for a thread
+     **/
+    public ServerExecutors(int ioLimit, ThreadFactory ioThreads, int matchThreads, int matchQueue) {
+	io = new ThreadPoolExecutor(0, Math.max(1, ioLimit), 60, TimeUnit.SECONDS,
+				    new SynchronousQueue<Runnable>(),
+				    ioThreads != null ? ioThreads : new NamedThreads("io"), ioRejected);
+	match = new ThreadPoolExecutor(Math.max(1, matchThreads), Math.max(1, matchThreads), 0, TimeUnit.SECONDS,
+				       new LinkedBlockingQueue<Runnable>(Math.max(1, matchQueue)),
+				       new NamedThreads("match"), matchRejected);
+	scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreads("scheduler"));
+	scheduler.setRemoveOnCancelPolicy(true);
+	watch = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(WATCH_QUEUE),
+				       new NamedThreads("watch"), watchRejected);
+    }
+
+    /**
+     * Pools for an in-process server (no connections): a match thread per core.
+     **/
+    public ServerExecutors() {
+	this(1, null, Runtime.getRuntime().availableProcessors(), DEFAULT_MATCH_QUEUE);
+    }
+
+    public ExecutorService io() { return io; }
+    public ExecutorService match() { return match; }
+    public ScheduledExecutorService scheduler() { return scheduler; }
+    public ExecutorService watch() { return watch; }
+
+    /**
+     * Number of matches waiting for a thread to start them.
+     **/
+    public int matchQueued() { return match.getQueue().size(); }
+
+    /**
+     * Threads for blocking connections: virtual threads when the JVM has
+     * them (Java 21+, found by reflection as we build for Java 8),
+     * otherwise null (use ordinary threads).
+     **/
+    public static ThreadFactory virtualThreads() {
+	try {
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "io-", 1L);
+	    return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+	} catch (Exception e) {
+	    return null;
+	}
+    }
+
+    /**
+     * The load of the pools: NAME/ACTIVE/MAX/QUEUED/COMPLETED/REJECTED,...
+     **/
+    public String metrics() {
+	return metrics("io", io, ioRejected.rejected.get()) + "," +
+	    metrics("match", match, matchRejected.rejected.get()) + "," +
+	    metrics("scheduler", scheduler, 0) + "," +
+	    metrics("watch", watch, watchRejected.rejected.get());
+    }
+
+    private static String metrics(String name, ThreadPoolExecutor pool, long rejected) {
+	return name + "/" + pool.getActiveCount() + "/" + pool.getMaximumPoolSize() + "/" +
+	    pool.getQueue().size() + "/" + pool.getCompletedTaskCount() + "/" + rejected;
+    }
+
+    /**
+     * Stop accepting work (running tasks are not interrupted).
+     **/
+    public void shutdown() {
+	io.shutdown();
+	match.shutdown();
+	scheduler.shutdown();
+	watch.shutdown();
+    }
+}
@@ -0,0 +1,93 @@
+package cad.ai.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***********************************************************
+ * What the server is doing, for capacity planning and spotting slow
+ * bots: connections, matches (and how fast they finish), queue depths
+ * and the time the server takes to process a move (from Match.postMessage
+ * to the response being posted).  Reported by @STATS and through JMX
+ * (see ServerStatsMBean).  Recording is a couple of atomic increments.
+ ***********************************************************/
+public class ServerStats implements ServerStatsMBean {
+    private static final long RATE_WINDOW = 10000000000L;  // Matches per second over 10 seconds (ns)
+
+    private final GameServer server;   // Connections and pools (null for an in-process server)
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong finished = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();  // Connections closed for not reading
+    private final LatencyHistogram moveLatency = new LatencyHistogram();
+
+    private long windowStart = System.nanoTime();  // The window matchesPerSecond is measured over
+    private long windowFinished = 0;
+    private double lastRate = -1;                  // Rate over the last complete window (-1 = none yet)
+
+    /**
+     * @param server The server whose connections and pools are reported (null if none)
+     **/
+    public ServerStats(GameServer server) {
+	this.server = server;
+    }
+
+    /** Recorders **/
+    void matchStarted() { started.incrementAndGet(); }
+    void matchFinished() { finished.incrementAndGet(); }
+    void moveProcessed(long nanos) { moveLatency.record(nanos); }
+    void connectionOverflowed() { overflowed.incrementAndGet(); }
+
+    /** ServerStatsMBean **/
+    public int getActiveConnections() { return (server == null) ? 0 : server.activeConnections(); }
+    public long getActiveMatches() { return started.get() - finished.get(); }
+    public long getMatchesFinished() { return finished.get(); }
+    public int getMatchQueueDepth() {
+	return (server == null || server.getExecutors() == null) ? 0 : server.getExecutors().matchQueued();
+    }
+    public long getOutboundQueueDepth() { return (server == null) ? 0 : server.outboundQueued()[0]; }
+    public long getMaxOutboundQueueDepth() { return (server == null) ? 0 : server.outboundQueued()[1]; }
+    public long getConnectionsOverflowed() { return overflowed.get(); }
+    public long getMoves() { return moveLatency.count(); }
+    public double getMoveLatencyP50Micros() { return moveLatency.percentile(0.5) / 1000.0; }
+    public double getMoveLatencyP99Micros() { return moveLatency.percentile(0.99) / 1000.0; }
+    public double getMoveLatencyP999Micros() { return moveLatency.percentile(0.999) / 1000.0; }
+    public double getMoveLatencyMaxMicros() { return moveLatency.max() / 1000.0; }
+    public int getSpectators() { return (spectators() == null) ? 0 : spectators().watching(); }
+    public long getSpectatorUpdatesSkipped() { return (spectators() == null) ? 0 : spectators().skipped(); }
+    public long getSpectatorsDropped() { return (spectators() == null) ? 0 : spectators().dropped(); }
+
+    private Spectators spectators() { return (server == null) ? null : server.getSpectators(); }
+
+    /**
+     * Matches finished per second over the last complete 10 second window
+     * (or since the current one started if there was none yet).
+     **/
+    public synchronized double getMatchesPerSecond() {
+	long now = System.nanoTime();
+	long done = finished.get();
+	long elapsed = now - windowStart;
+	double rate = (elapsed > 0) ? (done - windowFinished) * 1e9 / elapsed : 0;
+	if (elapsed >= RATE_WINDOW) {
+	    lastRate = rate;
+	    windowStart = now;
+	    windowFinished = done;
+	}
+	return (lastRate >= 0) ? lastRate : rate;
+    }
+
+    /**
+     * All of it in one line: NAME=VALUE,...  (the @STATS response)
+     **/
+    public String toString() {
+	long[] queued = (server == null) ? new long[2] : server.outboundQueued();
+	return String.format(Locale.ROOT,
+			     "connections=%d,matches=%d,finished=%d,matchesPerSec=%.1f,matchQueue=%d," +
+			     "outQueue=%d,outQueueMax=%d,outOverflows=%d,moves=%d,moveP50us=%.1f,moveP99us=%.1f," +
+			     "moveP999us=%.1f,moveMaxUs=%.1f,spectators=%d,watchSkipped=%d,watchDropped=%d",
+			     getActiveConnections(), getActiveMatches(), getMatchesFinished(),
+			     getMatchesPerSecond(), getMatchQueueDepth(), queued[0], queued[1],
+			     getConnectionsOverflowed(), getMoves(),
+			     getMoveLatencyP50Micros(), getMoveLatencyP99Micros(),
+			     getMoveLatencyP999Micros(), getMoveLatencyMaxMicros(),
+			     getSpectators(), getSpectatorUpdatesSkipped(), getSpectatorsDropped());
+    }
+}
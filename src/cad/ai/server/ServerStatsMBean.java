@@ -0,0 +1,24 @@
+package cad.ai.server;
+
+/***********************************************************
+ * The server statistics as seen through JMX (e.g. jconsole), under
+ * cad.ai.server:type=ServerStats,port=PORT.  See ServerStats.
+ ***********************************************************/
+public interface ServerStatsMBean {
+    public int getActiveConnections();
+    public long getActiveMatches();
+    public long getMatchesFinished();
+    public double getMatchesPerSecond();
+    public int getMatchQueueDepth();
+    public long getOutboundQueueDepth();
+    public long getMaxOutboundQueueDepth();
+    public long getConnectionsOverflowed();
+    public long getMoves();
+    public double getMoveLatencyP50Micros();
+    public double getMoveLatencyP99Micros();
+    public double getMoveLatencyP999Micros();
+    public double getMoveLatencyMaxMicros();
+    public int getSpectators();
+    public long getSpectatorUpdatesSkipped();
+    public long getSpectatorsDropped();
+}
@@ -0,0 +1,38 @@
+package cad.ai.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/***********************************************************
+ * A message sent to many connections (e.g. a game state sent to its
+ * spectators): encoded once - as a line and, when first needed, as a
+ * binary frame - and the same bytes queued on every connection (each
+ * gets its own read-only view, not a copy).
+ ***********************************************************/
+class SharedMessage {
+    private final String text;      // The message (without the new line)
+    private final String line;      // ... with it
+    private final byte[] lineBytes; // ... encoded
+    private volatile byte[] frame = null;  // As a binary frame (made on first use)
+
+    SharedMessage(String text) {
+	this.text = text;
+	this.line = text + "\n";
+	this.lineBytes = line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String toString() { return text; }
+
+    /** The message and its new line (for connections writing strings). **/
+    String line() { return line; }
+
+    /** The message and its new line as bytes. **/
+    ByteBuffer lineBuffer() { return ByteBuffer.wrap(lineBytes).asReadOnlyBuffer(); }
+
+    /** The message as a binary frame (see BinaryProtocol). **/
+    ByteBuffer frameBuffer() {
+	byte[] f = frame;
+	if (f == null) frame = f = BinaryProtocol.encode(text);  // At worst encoded twice at once: same bytes
+	return ByteBuffer.wrap(f).asReadOnlyBuffer();
+    }
+}
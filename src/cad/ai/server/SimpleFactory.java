@@ -18,4 +18,5 @@ import cad.ai.game.*;
  ***********************************************************/
 public class SimpleFactory implements GameFactory {
     public Game newGame() { return new SimpleGame(); }
+    public Game newClientGame(int p, AI ai) { return null; }  // No client side version (yet)
 }
@@ -0,0 +1,123 @@
+package cad.ai.server;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***********************************************************
+ * The connections watching matches (@WATCH): one match, every match of a
+ * tournament or everything on the server.  A match publishes what its
+ * spectators see (start, states and result) here; each update is
+ * encoded once (SharedMessage) and handed to the watch thread which
+ * queues the same bytes on every spectator.  So the match only pays for
+ * building the message - and nothing at all when nobody watches it.
+ * Spectators never hold up the players:
+ *  - if the watch thread is behind (its queue is full) the update is
+ *    skipped for everybody,
+ *  - a spectator with more than SKIP_QUEUE messages waiting skips game
+ *    states (each state is complete, so it just sees fewer of them),
+ *  - a spectator with more than DROP_QUEUE waiting is no longer watching
+ *    (and told so with @WATCH:DROPPED).
+ ***********************************************************/
+class Spectators {
+    public static final int SKIP_QUEUE = 64;     // Messages waiting before a spectator skips states
+    public static final int DROP_QUEUE = 1024;   // ... before it is dropped
+
+    private final ExecutorService fanout;        // The watch thread
+    private final Set<ServerConnection> all = ConcurrentHashMap.newKeySet();  // Watching everything
+    private final ConcurrentHashMap<Integer, Set<ServerConnection>> tours =
+	new ConcurrentHashMap<Integer, Set<ServerConnection>>();          // ... by tournament ID
+    private final ConcurrentHashMap<String, Set<ServerConnection>> matches =
+	new ConcurrentHashMap<String, Set<ServerConnection>>();          // ... by match (TID:HID:AID)
+    private final AtomicLong skipped = new AtomicLong();  // Updates (or states) not sent
+    private final AtomicLong dropped = new AtomicLong();  // Spectators dropped
+
+    Spectators(ExecutorService fanout) {
+	this.fanout = fanout;
+    }
+
+    /** Watch every match on the server. **/
+    void watchAll(ServerConnection c) { all.add(c); }
+
+    /** Watch every match of tournament tid. **/
+    void watchTour(ServerConnection c, int tid) {
+	tours.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(c);
+    }
+
+    /** Watch the match key (TID:HID:AID). **/
+    void watchMatch(ServerConnection c, String key) {
+	matches.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(c);
+    }
+
+    /**
+     * Stop watching anything (e.g. the connection closed).
+     **/
+    void unwatch(ServerConnection c) {
+	all.remove(c);
+	for (Integer tid: tours.keySet()) tours.computeIfPresent(tid, (k, s) -> s.remove(c) && s.isEmpty() ? null : s);
+	for (String key: matches.keySet()) matches.computeIfPresent(key, (k, s) -> s.remove(c) && s.isEmpty() ? null : s);
+    }
+
+    /**
+     * Does anybody watch the match key (TID:HID:AID) of tournament tid?
+     **/
+    boolean isWatched(int tid, String key) {
+	return !all.isEmpty() || tours.containsKey(tid) || matches.containsKey(key);
+    }
+
+    /**
+     * Send @WATCH:KIND:KEY:BODY to the spectators of the match key of
+     * tournament tid (later, on the watch thread).  Game states may be
+     * skipped, the other kinds only if the watch thread is behind.
+     **/
+    void publish(int tid, String key, String kind, String body) {
+	if (!isWatched(tid, key)) return;
+	SharedMessage m = new SharedMessage("@WATCH:" + kind + ":" + key + ":" + body);
+	boolean state = kind.equals("STATE");
+	try {
+	    fanout.execute(() -> deliver(tid, key, m, state));
+	} catch (RejectedExecutionException e) {
+	    skipped.incrementAndGet();
+	}
+    }
+
+    // Queue the message on everybody watching the match (once each).
+    private void deliver(int tid, String key, SharedMessage m, boolean state) {
+	Set<ServerConnection> tour = tours.get(tid);
+	Set<ServerConnection> match = matches.get(key);
+	Set<ServerConnection> to = all;
+	if (tour != null || match != null) {
+	    to = new LinkedHashSet<ServerConnection>(all);
+	    if (tour != null) to.addAll(tour);
+	    if (match != null) to.addAll(match);
+	}
+	for (ServerConnection c: to) {
+	    int pending = c.pendingMessages();
+	    if (pending > DROP_QUEUE) {
+		unwatch(c);
+		dropped.incrementAndGet();
+		c.postMessageLn("@WATCH:DROPPED");
+	    } else if (state && pending > SKIP_QUEUE) {
+		skipped.incrementAndGet();
+	    } else {
+		c.postShared(m);
+	    }
+	}
+    }
+
+    /**
+     * Number of subscriptions (to everything, tournaments and matches).
+     **/
+    int watching() {
+	int watching = all.size();
+	for (Set<ServerConnection> s: tours.values()) watching += s.size();
+	for (Set<ServerConnection> s: matches.values()) watching += s.size();
+	return watching;
+    }
+
+    long skipped() { return skipped.get(); }
+    long dropped() { return dropped.get(); }
+}
@@ -0,0 +1,121 @@
+package cad.ai.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/***********************************************************
+ * A Swiss-system tournament: a fixed number of rounds (by default
+ * ceil(log2 n), enough to single out a winner) in which everybody plays
+ * one match, against a player with the same score (or as close as there
+ * is) they have not met yet.  So n players play about n/2 log2 n matches
+ * rather than the n(n-1) of a round-robin, and an event of thousands of
+ * players takes a handful of rounds.
+ * Nobody joins once the first round is paired (at START).  A round is
+ * paired when the previous one is over, from the standings:
+ *   - with an odd number of players the lowest ranked one that has not had
+ *     a bye yet sits the round out, and is counted a win (see bye),
+ *   - going down the standings each player meets the first one below it,
+ *     within LOOKAHEAD places, it has not met yet (or the next one anyway
+ *     if they all have) - so pairing costs a sort and a linear scan,
+ *   - the one that has been home less often is home.
+ * Everything depends only on the results, so replaying them from the
+ * journal pairs the same rounds again.
+ ***********************************************************/
+public class SwissTournament extends Tournament {
+    private static final int LOOKAHEAD = 8;   // Places looked down for an opponent not met yet
+    private int rounds;                       // Rounds to play (0 until fixed at the first pairing)
+    private int round = 0;                    // Rounds paired so far
+    private int playing = 0;                  // Matches of the current round not over yet
+    private HashMap<Player, HashSet<Player>> met = new HashMap<Player, HashSet<Player>>();  // Opponents so far
+    private HashMap<Player, Integer> homes = new HashMap<Player, Integer>();  // Matches played at home
+    private HashSet<Player> byes = new HashSet<Player>();  // Players that had a bye
+
+    /**
+     * @param rounds The rounds to play (0 for ceil(log2 n) with n players)
+     **/
+    public SwissTournament(GameFactory g, Player owner, ServerExecutors executors, ServerStats stats, int rounds) {
+	this(g, owner, executors, stats, 0, rounds);
+    }
+
+    SwissTournament(GameFactory g, Player owner, ServerExecutors executors, ServerStats stats, int id, int rounds) {
+	super(g, owner, executors, stats, id);
+	this.rounds = rounds;
+    }
+
+    public synchronized String getFormat() { return "SWISS" + (rounds > 0 ? "/" + rounds : ""); }
+
+    public synchronized boolean isOpen() { return super.isOpen() && round == 0; }
+
+    protected void joined(Player p) {
+	met.put(p, new HashSet<Player>());
+	homes.put(p, 0);
+    }
+
+    protected void starting() {
+	if (round > 0) return;
+	if (rounds == 0) rounds = log2(player.size());
+	pairRound();
+    }
+
+    protected void decided(Match m) {
+	if (--playing == 0) pairRound();
+    }
+
+    public synchronized int matchesLeft() {
+	int left = (round == 0 && rounds == 0) ? log2(player.size()) : rounds - round;
+	return super.matchesLeft() + left * (player.size() / 2);
+    }
+
+    // The smallest r with 2^r >= n
+    private static int log2(int n) {
+	return (n < 2) ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+    }
+
+    // Pair the next round (if any is left) and start its matches.
+    private void pairRound() {
+	if (round >= rounds || player.size() < 2) return;
+	round++;
+	List<Player> order = new ArrayList<Player>(standings());
+	if (order.size() % 2 == 1) {
+	    int i = order.size() - 1;
+	    while (i > 0 && byes.contains(order.get(i))) i--;
+	    Player p = order.remove(i);
+	    byes.add(p);
+	    bye(p);
+	}
+
+	int n = order.size();
+	boolean[] paired = new boolean[n];
+	for (int i = 0; i < n; i++) {
+	    if (paired[i]) continue;
+	    Player a = order.get(i);
+	    int j = -1;
+	    for (int k = i + 1, seen = 0; k < n && seen < LOOKAHEAD; k++) {
+		if (paired[k]) continue;
+		if (j < 0) j = k;  // The next one, if nobody is new to a
+		if (!met.get(a).contains(order.get(k))) {
+		    j = k;
+		    break;
+		}
+		seen++;
+	    }
+	    paired[i] = paired[j] = true;
+	    pair(a, order.get(j));
+	}
+	debug("Round " + round + " of " + rounds + ": " + playing + " matches.");
+	for (Player p: order) ready(p);
+    }
+
+    private void pair(Player a, Player b) {
+	if (homes.get(b) < homes.get(a)) {
+	    Player t = a; a = b; b = t;
+	}
+	newMatch(a, b);
+	playing++;
+	met.get(a).add(b);
+	met.get(b).add(a);
+	homes.put(a, homes.get(a) + 1);
+    }
+}
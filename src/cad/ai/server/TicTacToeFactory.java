@@ -0,0 +1,11 @@
+package cad.ai.server;
+
+import cad.ai.game.*;
+
+/***********************************************************
+ * An instance of a GameFactory.  A Tic-Tac-Toe game.
+ ***********************************************************/
+public class TicTacToeFactory implements GameFactory {
+    public Game newGame() { return new TicTacToeGame(); }
+    public Game newClientGame(int p, AI ai) { return new TicTacToeGame(p, null, ai, false, 0); }
+}
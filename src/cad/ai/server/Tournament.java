@@ -0,0 +1,589 @@
+/*******************
+ * Christian A. Duncan
+ * CSC350: Intelligent Systems
+ * Spring 2017
+ *
+ * AI Game Server Project
+ * This project is designed to support multiple game platforms to test
+ * AI-based solutions.
+ * See README file for more details.
+ ********************/
+
+package cad.ai.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***********************************************************
+ * What every tournament format has in common: its players, the matches
+ * they have to play, the scheduling of those matches on the server's
+ * threads, the tallies, reports and standings, the subscribers, the
+ * spectators and the journal.  A format (see GameServer.newTournament)
+ * only decides which matches there are:
+ *   RRTournament       - everybody against everybody, home and away
+ *   SwissTournament    - a few rounds pairing players with equal scores
+ *   KnockoutTournament - a bracket, the loser of each match is out
+ * by creating them (newMatch) as players join (joined), when the
+ * tournament starts (starting) and as the results come in (decided).
+ * Scheduling is event driven: whenever a player becomes free (joins, the
+ * tournament is activated, or a match finishes) its own list of pending
+ * matches is searched for an opponent that is free too.  Which of the
+ * possible matches is started depends on the scheduling Policy:
+ *   GREEDY         - the first one (in the order the matches were created)
+ *   MOST_REMAINING - the one against the opponent with the most matches left
+ *                    (so nobody ends up playing their last matches alone),
+ *                    among the first LOOKAHEAD free ones
+ *   ROUNDS         - the one in the earliest round of a plan made when the
+ *                    tournament starts (see RRTournament): the pending
+ *                    matches are then kept in round order, so it is the first.
+ ***********************************************************/
+public abstract class Tournament {
+    public static enum Policy { GREEDY, MOST_REMAINING, ROUNDS };
+    private static final long RETRY_MILLIS = 100;  // Wait before retrying when the match pool is full
+    private static final int LOOKAHEAD = 8;        // Free opponents compared by MOST_REMAINING
+    public static final int DEFAULT_PAGE_SIZE = 50;   // Standings per page
+    public static final int MAX_PAGE_SIZE = 1000;
+    private static final long PUSH_MILLIS = 100;      // Results are pushed to subscribers at most this often
+    private GameFactory gameFactory;   // Used to create new games
+    protected ArrayList<Player> player;  // Players in this tournament (in the order they joined)
+    protected ArrayList<Match> match;    // List of Matches (to play)
+    private HashMap<Player, LinkedHashSet<Match>> pending;  // Matches not started yet, per player
+    private int started = 0;           // Number of matches started
+    private long changes = 0;          // Counts every change to the report or standings (for the caches)
+    private String report = null;      // The last report (valid while changes == reportChanges)
+    private long reportChanges = -1;
+    private List<Player> standings = null;  // Players sorted by score (valid while changes == standingsChanges)
+    private long standingsChanges = -1;
+    private LinkedHashSet<Player> subscribers = new LinkedHashSet<Player>();  // Pushed the results (@TOUR:SUBSCRIBE)
+    private StringBuilder pushResults = new StringBuilder();       // Results not pushed yet: HID/AID/R,...
+    private LinkedHashSet<Player> pushPlayers = new LinkedHashSet<Player>();  // ... and whose tallies changed
+    private boolean pushScheduled = false;
+    protected int finished = 0;        // Number of matches completed
+    protected Policy policy = Policy.GREEDY;  // How to choose the next match
+    private long firstStart = 0, lastFinish = 0;  // Makespan (System.nanoTime)
+    private long playTime = 0;         // Total duration of the completed matches (nanoseconds)
+    protected boolean active;          // Is the tournament commencing.
+    private boolean quit;              // If true, terminate the tournament completely
+    private Player owner;              // The player that "owns" this tournament.
+    private int id;                    // The id of this tournament
+    private ServerExecutors executors;  // The server's threads (shared with other tournaments)
+    private ServerStats stats;          // The server's statistics (shared with other tournaments)
+    private Journal journal = null;     // Where the changes are recorded (null if they are not)
+    private String type = null;         // The game type (as created, for the journal)
+    private Spectators spectators = null;  // Who watches the matches (null if nobody can)
+
+    private static final AtomicInteger lastID = new AtomicInteger();  // Last ID handed out (to a Tournament)
+
+    /**
+     * A tournament with the given ID (created before, rebuilt from the
+     * journal) or the next one if id is 0.
+     **/
+    protected Tournament(GameFactory g, Player owner, ServerExecutors executors, ServerStats stats, int id) {
+	player = new ArrayList<Player>();
+	match = new ArrayList<Match>();
+	pending = new HashMap<Player, LinkedHashSet<Match>>();
+	active = false;
+	quit = false;
+	gameFactory = g;
+	this.owner = owner;
+	owner.setTour(this);
+	this.id = (id > 0) ? claimID(id) : getNextID();
+	this.executors = executors;
+	this.stats = stats;
+    }
+
+    ServerStats getStats() { return stats; }
+    ServerExecutors getExecutors() { return executors; }
+
+    /**
+     * Record the changes to this tournament (of the given game type) in the journal.
+     **/
+    synchronized void setJournal(Journal journal, String type) {
+	this.journal = journal;
+	this.type = type;
+    }
+
+    synchronized void setSpectators(Spectators spectators) { this.spectators = spectators; }
+    synchronized Spectators getSpectators() { return spectators; }
+
+    /**
+     * Show a new spectator the matches in progress.
+     **/
+    void showTo(ServerConnection c) {
+	ArrayList<Match> playing = new ArrayList<Match>();
+	synchronized (this) {
+	    for (Player p: player) {
+		Match m = p.getMatch();
+		if (m != null && m.getHome() == p && m.getState() == Match.State.IN_PROGRESS) playing.add(m);
+	    }
+	}
+	for (Match m: playing) m.showTo(c);
+    }
+
+    private void journal(String record) {
+	if (journal != null) journal.append(record);
+    }
+
+    /**
+     * Add the player to the tournament (see joined for the matches it gets).
+     * @returns True if successfully added, false if not (e.g. player already
+     *          present or the format takes nobody new - see isOpen)
+     **/
+    public synchronized boolean addPlayer(Player p) {
+	if (player.contains(p) || !isOpen())
+	    return false;
+
+	pending.put(p, new LinkedHashSet<Match>());
+	joined(p);
+
+	p.setTour(this);  // Link this tournament to the player
+	player.add(p);    // Add the player to the list
+	changes++;
+	journal("J:" + id + ":" + p.getID());
+	schedulePush(null, p);  // So subscribers know about the newcomer
+	if (active) startMatchFor(p);  // New matches might be available
+	return true;
+    }
+    
+    /*** Accessor and mutator methods ***/
+    public boolean isActive() { return active; }
+    public synchronized void setActive(boolean active) {
+	this.active = active;
+	journal("A:" + id + ":" + (active ? 1 : 0));
+	if (!active) return;
+	starting();
+	ArrayList<Player> order = new ArrayList<Player>(player);
+	if (policy == Policy.MOST_REMAINING)
+	    order.sort((a, b) -> pending.get(b).size() - pending.get(a).size());
+	for (Player p: order) startMatchFor(p);
+    }
+    public synchronized Policy getPolicy() { return policy; }
+    public synchronized void setPolicy(Policy policy) {
+	this.policy = policy;
+	journal("O:" + id + ":" + policy);
+	if (active) starting();
+    }
+    public synchronized void terminate() {
+	this.quit = true;
+	journal("E:" + id);
+	notifyAll();
+	pushResults();  // The last ones
+
+	// Inform all the players...
+	for (Player p: player) p.postMessage("@TOUR:END");
+    }
+    
+    public int getID() { return this.id; }
+    synchronized String getType() { return type; }
+    public boolean isOwner(Player p) { return p == owner; }
+
+    /**
+     * The format as given to GameServer.newTournament (e.g. RR, SWISS/5).
+     **/
+    public abstract String getFormat();
+
+    /**
+     * Can players still join?  Checked by addPlayer.  Once a tournament is
+     * closed it stays closed (see GameServer.joinTournament).
+     **/
+    public synchronized boolean isOpen() { return !quit; }
+
+    /*** What a format decides (all called with the tournament locked) ***/
+
+    /**
+     * The player p is joining (not in the player list yet): create the
+     * matches it is to play so far, if any.
+     **/
+    protected void joined(Player p) { }
+
+    /**
+     * The tournament is started (or resumed, or its Policy changed while
+     * active - or the journal shows it had started).  Called before any
+     * match is looked for, so what it creates is started right away.
+     **/
+    protected void starting() { }
+
+    /**
+     * The match m is over (it is in the tallies) - played or restored from
+     * the journal.  The players are started again afterwards (see ready
+     * for the others concerned).
+     **/
+    protected void decided(Match m) { }
+
+    /**
+     * Put every player's pending matches in round order (once the rounds
+     * are planned, see Match.setRound), so the first one against a free
+     * opponent is the one in the earliest round.  Matches made later go
+     * last, as their round is not planned.
+     **/
+    protected void orderPending() {
+	for (LinkedHashSet<Match> mine: pending.values()) {
+	    ArrayList<Match> order = new ArrayList<Match>(mine);
+	    order.sort((a, b) -> Integer.compare(a.getRound(), b.getRound()));  // Stable: ties keep their order
+	    mine.clear();
+	    mine.addAll(order);
+	}
+    }
+
+    /**
+     * A new match between home and away, to be played when both are free.
+     * The games themselves are only created when each match starts.
+     **/
+    protected Match newMatch(Player home, Player away) {
+	Match m = new Match(home, away, gameFactory, this);
+	match.add(m);
+	pending.get(home).add(m);
+	pending.get(away).add(m);
+	changes++;
+	return m;
+    }
+
+    /**
+     * Start a match for p if the tournament is running (e.g. it has a new
+     * one that was not created in joined or starting).
+     **/
+    protected void ready(Player p) {
+	if (active && !quit) startMatchFor(p);
+    }
+
+    /**
+     * The player p wins without playing (a bye).  Counted as a win.
+     **/
+    protected void bye(Player p) {
+	p.addWin();
+	changes++;
+	schedulePush(null, p);
+    }
+    
+    /**
+     * Called by a Match once it is over - both players are free again.
+     **/
+    synchronized void matchFinished(Match m) {
+	finished++;
+	lastFinish = m.getEndTime();
+	tally(m);
+	journal("R:" + id + ":" + m.getHome().getID() + ":" + m.getAway().getID() + ":" + result(m));
+	schedulePush(m, null);
+	playTime += m.getEndTime() - m.getStartTime();
+	decided(m);
+	if (matchesLeft() == 0) debug("All matches played.  Makespan: " + makespan());
+	notifyAll();  // For awaitCompletion
+	if (active && !quit) {
+	    startMatchFor(m.getHome());
+	    startMatchFor(m.getAway());
+	}
+    }
+
+    // Count the result of the finished match in the players' tallies
+    private void tally(Match m) {
+	changes++;
+	switch (m.getState()) {
+	case HOME_WIN: m.getHome().addWin(); m.getAway().addLoss(); break;
+	case AWAY_WIN: m.getHome().addLoss(); m.getAway().addWin(); break;
+	case TIE: m.getHome().addTie(); m.getAway().addTie(); break;
+	default:
+	}
+    }
+
+    private static char result(Match m) {
+	return m.getState() == Match.State.HOME_WIN ? 'H' : m.getState() == Match.State.AWAY_WIN ? 'A' : 'T';
+    }
+
+    /**
+     * The match home/away was played before (its result R, as in @REPORT,
+     * is from the journal): it is not played again.  Ignored if it was
+     * restored already.  A result means the tournament had started, so the
+     * format starts it first (with no match played) - the same matches are
+     * created as when it was played, in the same order.
+     **/
+    synchronized void restoreResult(Player home, Player away, char r) {
+	starting();
+	LinkedHashSet<Match> mine = pending.get(home);
+	if (mine == null) return;
+	for (Match m: mine) {
+	    if (m.getAway() != away) continue;
+	    mine.remove(m);
+	    pending.get(away).remove(m);
+	    m.restore(r == 'H' ? Match.State.HOME_WIN : r == 'A' ? Match.State.AWAY_WIN : Match.State.TIE);
+	    started++;
+	    finished++;
+	    tally(m);
+	    decided(m);
+	    return;
+	}
+    }
+
+    /**
+     * Add the journal records that rebuild this tournament as it is now
+     * (the matches in progress are played again).
+     **/
+    synchronized void snapshot(List<String> records) {
+	records.add("T:" + id + ":" + type + ":" + owner.getID() + ":" + getFormat());
+	if (policy != Policy.GREEDY) records.add("O:" + id + ":" + policy);
+	for (Player p: player) records.add("J:" + id + ":" + p.getID());
+	for (Match m: match) {  // In the order they were created (see restoreResult)
+	    if (m.getState() == Match.State.NOT_STARTED || m.getState() == Match.State.IN_PROGRESS) continue;
+	    records.add("R:" + id + ":" + m.getHome().getID() + ":" + m.getAway().getID() + ":" + result(m));
+	}
+	if (active) records.add("A:" + id + ":1");
+	if (quit) records.add("E:" + id);
+    }
+
+    /**
+     * Push the results to the player as the matches finish (see pushResults),
+     * starting with the tallies of everybody so far.
+     **/
+    synchronized void subscribe(Player p) {
+	if (!subscribers.add(p)) return;
+	StringBuilder tallies = new StringBuilder();
+	for (Player q: player) appendTallies(tallies, q);
+	p.postMessage("@TOUR:RESULTS::" + tallies);
+    }
+
+    synchronized void unsubscribe(Player p) {
+	subscribers.remove(p);
+    }
+
+    // Note the finished match (or changed player) for the next push - which
+    // is scheduled if there is none yet, so results arriving in the meantime
+    // are coalesced into one message.
+    private void schedulePush(Match m, Player p) {
+	if (subscribers.isEmpty()) return;
+	if (m != null) {
+	    if (pushResults.length() > 0) pushResults.append(',');
+	    pushResults.append(m.getHome().getID()).append('/').append(m.getAway().getID()).append('/')
+		.append(result(m));
+	    pushPlayers.add(m.getHome());
+	    pushPlayers.add(m.getAway());
+	}
+	if (p != null) pushPlayers.add(p);
+	if (!pushScheduled) {
+	    pushScheduled = true;
+	    executors.scheduler().schedule(this::pushResults, PUSH_MILLIS, TimeUnit.MILLISECONDS);
+	}
+    }
+
+    /**
+     * Send the subscribers the results since the last push:
+     *   @TOUR:RESULTS:HID/AID/R,...:ID/SCORE/W/L/T,...
+     * (the matches that finished and the new tallies of the players concerned).
+     **/
+    private synchronized void pushResults() {
+	pushScheduled = false;
+	if (pushPlayers.isEmpty()) return;
+	StringBuilder tallies = new StringBuilder();
+	for (Player q: pushPlayers) appendTallies(tallies, q);
+	String message = "@TOUR:RESULTS:" + pushResults + ":" + tallies;
+	for (Player s: subscribers) s.postMessage(message);
+	pushResults.setLength(0);
+	pushPlayers.clear();
+    }
+
+    /**
+     * What the tournament is like: TID/TYPE/PLAYERS/LEFT/STATE (see GameServer.tournaments)
+     **/
+    synchronized String summary() {
+	return id + "/" + type + "/" + player.size() + "/" + matchesLeft() + "/" +
+	    (quit ? 'E' : !isOpen() ? 'C' : active ? 'A' : 'W');
+    }
+
+    /**
+     * Append the tallies of the players: TID/ID/SCORE/W/L/T,...
+     **/
+    synchronized void appendTallies(StringBuilder b) {
+	for (Player p: player) {
+	    if (b.length() > 0) b.append(',');
+	    b.append(id).append('/').append(p.getID()).append('/').append(p.getScore()).append('/')
+		.append(p.getWins()).append('/').append(p.getLosses()).append('/').append(p.getTies());
+	}
+    }
+
+    private static void appendTallies(StringBuilder b, Player p) {
+	if (b.length() > 0) b.append(',');
+	b.append(p.getID()).append('/').append(p.getScore()).append('/')
+	    .append(p.getWins()).append('/').append(p.getLosses()).append('/').append(p.getTies());
+    }
+
+    /**
+     * Wait until every match has been played (or the tournament is terminated).
+     **/
+    public synchronized void awaitCompletion() throws InterruptedException {
+	while (!quit && matchesLeft() > 0) wait();
+    }
+
+    /**
+     * Start the next pending match of the given player against an opponent
+     * that is also free (if there is one).  Only this player's own pending
+     * matches are searched, in order, and only up to the first free opponent
+     * (LOOKAHEAD of them for MOST_REMAINING): the cost is the busy opponents
+     * skipped - at most the matches in progress - not the player's schedule.
+     **/
+    private void startMatchFor(Player p) {
+	LinkedHashSet<Match> mine = pending.get(p);
+	if (quit || mine == null || mine.isEmpty() || p.getMatch() != null) return;
+
+	// Choose among the matches against free opponents (by policy)
+	Match best = null;
+	int bestKey = 0, free = 0;
+	for (Match m: mine) {
+	    Player other = (m.getHome() == p) ? m.getAway() : m.getHome();
+	    if (other.getMatch() != null) continue;  // Opponent is busy
+	    if (policy != Policy.MOST_REMAINING) {
+		best = m;  // GREEDY: the first made, ROUNDS: the earliest round (see orderPending)
+		break;
+	    }
+	    int key = -pending.get(other).size();
+	    if (best == null || key < bestKey) {
+		best = m;
+		bestKey = key;
+	    }
+	    if (++free == LOOKAHEAD) break;
+	}
+	if (best == null) return;
+
+	Player home = best.getHome();
+	Player away = best.getAway();
+	Player other = (home == p) ? away : home;
+	if (!p.setMatch(best)) return;   // Busy after all (e.g. in another tournament)
+	if (!other.setMatch(best)) {
+	    p.clearMatch();
+	    return;
+	}
+	try {
+	    executors.match().execute(new FutureTask<Integer>(best));
+	} catch (RejectedExecutionException e) {
+	    // Too many matches waiting to start (server wide): try again shortly (it is still pending, in place)
+	    p.clearMatch();
+	    other.clearMatch();
+	    executors.scheduler().schedule(() -> retry(p, other), RETRY_MILLIS, TimeUnit.MILLISECONDS);
+	    return;
+	}
+	mine.remove(best);  // Under the lock: the match can not finish (matchFinished) before this
+	pending.get(other).remove(best);
+	if (firstStart == 0) firstStart = System.nanoTime();  // The first one played (not restored)
+	started++;
+	changes++;
+	debug("Starting match between " + home.getID() + " and " + away.getID());
+    }
+
+    // Try again to start a match for the players (after the match pool was full).
+    private synchronized void retry(Player a, Player b) {
+	if (!active || quit) return;
+	startMatchFor(a);
+	startMatchFor(b);
+    }
+
+    /**
+     * The makespan of the tournament as POLICY:ROUNDS:PROJECTED:ACTUAL where
+     *   ROUNDS    is a lower bound on the rounds still needed (a player plays
+     *             one match at a time and at most n/2 matches run at once),
+     *   PROJECTED is the projected makespan in ms: the time so far plus ROUNDS
+     *             average matches (-1 until a match has finished),
+     *   ACTUAL    is the time in ms from the first start to the last finish.
+     **/
+    synchronized String makespan() {
+	int left = matchesLeft() - (started - finished);  // Not started (including those still to be made)
+	int rounds = 0;
+	for (LinkedHashSet<Match> mine: pending.values()) rounds = Math.max(rounds, mine.size());
+	int perRound = Math.max(1, player.size() / 2);
+	rounds = Math.max(rounds, (left + perRound - 1) / perRound);
+
+	long actual = (started == 0) ? 0 :
+	    ((matchesLeft() == 0) ? lastFinish : System.nanoTime()) - firstStart;
+	long projected = (finished == 0) ? -1 : (actual + rounds * (playTime / finished)) / 1000000;
+	return policy + ":" + rounds + ":" + projected + ":" + actual / 1000000;
+    }
+
+    /**
+     * Return how many matches are NOT completed - counting those the format
+     * has still to create (0 once the tournament is over).
+     **/
+    public synchronized int matchesLeft() {
+	return match.size() - finished;
+    }
+
+    /**
+     * Return how many matches are completed.
+     **/
+    public synchronized int matchesPlayed() { return finished; }
+    
+    /**
+     * Generate a report on this tournament.  See ServerProtocol text for format.
+     * It is only rebuilt when a match has started or finished (or a player
+     * joined) since the last one.
+     **/
+    synchronized String report() {
+	if (reportChanges == changes) return report;
+	StringBuilder result = new StringBuilder(match.size() * 12);
+	for (Match m: match) {
+	    if (result.length() > 0) result.append(',');  // CSVs...
+	    Match.State state = m.getState();
+	    if (state == Match.State.NOT_STARTED && m.getHome().getMatch() == m)
+		state = Match.State.IN_PROGRESS;  // Started (but its thread has not got to it yet)
+	    result.append(m.getHome().getID()).append('/').append(m.getAway().getID()).append('/')
+		.append((state == Match.State.NOT_STARTED) ? 'N' :
+			(state == Match.State.IN_PROGRESS) ? 'I' :
+			(state == Match.State.TIE) ? 'T' :
+			(state == Match.State.HOME_WIN) ? 'H' :
+			(state == Match.State.AWAY_WIN) ? 'A' : '?');
+	}
+	report = result.toString();
+	reportChanges = changes;
+	return report;
+    }
+
+    /**
+     * The players from best to worst: by score, then by wins (then by ID).
+     * The counts are kept up to date as the matches finish; the order is
+     * only sorted again after a change.
+     **/
+    synchronized List<Player> standings() {
+	if (standingsChanges != changes) {
+	    ArrayList<Player> sorted = new ArrayList<Player>(player);
+	    sorted.sort((a, b) -> (a.getScore() != b.getScore()) ? b.getScore() - a.getScore() :
+			(a.getWins() != b.getWins()) ? b.getWins() - a.getWins() : a.getID() - b.getID());
+	    standings = Collections.unmodifiableList(sorted);
+	    standingsChanges = changes;
+	}
+	return standings;
+    }
+
+    /**
+     * One page (1, 2, ...) of the standings.  See ServerProtocol text for format.
+     **/
+    synchronized String standings(int page, int size) {
+	List<Player> all = standings();
+	size = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+	int pages = Math.max(1, (all.size() + size - 1) / size);
+	page = Math.max(1, Math.min(page, pages));
+	StringBuilder result = new StringBuilder().append(page).append(':').append(pages).append(':');
+	for (int i = (page - 1) * size; i < Math.min(all.size(), page * size); i++) {
+	    Player p = all.get(i);
+	    if (i > (page - 1) * size) result.append(',');
+	    result.append(i + 1).append('/').append(p.getID()).append('/').append(p.getScore()).append('/')
+		.append(p.getWins()).append('/').append(p.getLosses()).append('/').append(p.getTies());
+	}
+	return result.toString();
+    }
+
+    /**
+     * Returns a "unique" header string - for debugging mainly.
+     **/
+    private String header() {
+	return "Tour (" + getID() + "): ";
+    }
+
+    synchronized protected void debug(String message) {
+	System.out.println("DEBUG: " + header() + message);
+    }
+
+    static private int getNextID() { return lastID.incrementAndGet(); }
+    static int claimID(int id) { lastID.accumulateAndGet(id, Math::max); return id; }
+}
@@ -0,0 +1,190 @@
+package cad.ai.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import cad.ai.game.*;
+
+/***********************************************************
+ * Runs a tournament (of any format) entirely inside this JVM.
+ *   The same Tournament scheduling and Match logic is used as on the
+ *   GameServer but the players are registered AIs connected through
+ *   in-process clients instead of sockets.  The clients answer the Match
+ *   immediately (on the Match's own thread) so there is no network and no
+ *   fixed sleeping - a tournament takes as long as the AIs need.
+ *   Useful to rehearse large tournaments before running them live.
+ ***********************************************************/
+public class TournamentSimulator {
+    /**
+     * An in-process client.  Plays the messages the Match sends to its
+     * Player just like a GameClient would, but answers synchronously.
+     **/
+    private static class SimulatedClient implements PlayerConnection {
+	private Player player;
+	private GameFactory factory;
+	private AI ai;
+	private Game game = null;
+
+	SimulatedClient(Player player, GameFactory factory, AI ai) {
+	    this.player = player;
+	    this.factory = factory;
+	    this.ai = ai;
+	}
+
+	public synchronized void postMessageLn(String message) {
+	    String[] pieces = message.split(":", 5);
+	    if (!pieces[0].equals("@GAME") || pieces.length < 3) return;  // Only games matter here
+	    switch (pieces[1]) {
+	    case "START":
+		game = factory.newClientGame(pieces[2].charAt(0) == 'H' ? 0 : 1, ai);
+		break;
+	    case "STATE":
+		if (game == null) return;
+		game.updateState(pieces[2]);
+		if (game.isPlayerTurn()) {
+		    String move = game.getMove();  // "@GAME:MOVE:X"
+		    Match m = player.getMatch();
+		    if (m != null && move != null && move.startsWith("@GAME:MOVE:"))
+			m.postMessage(player, move.substring(11));
+		}
+		break;
+	    case "RESULT":
+		if (game != null) game.postWinner(pieces[2].charAt(0));
+		game = null;
+		break;
+	    default:
+		// Messages and errors are of no interest to an AI
+	    }
+	}
+    }
+
+    private GameFactory factory;
+    private Tournament tour;
+    private List<Player> players;
+    private ServerExecutors executors;
+    private ServerStats stats;
+
+    /**
+     * @param type   Game type (as for @TOUR:CREATE)
+     * @param format Tournament format (see GameServer.newTournament)
+     * @param specs  One AIFactory specification per player
+     **/
+    public TournamentSimulator(String type, String format, List<String> specs) throws Exception {
+	factory = GameServer.getGameFactory(type);
+	if (factory == null || factory.newClientGame(0, null) == null)
+	    throw new IllegalArgumentException("Game type " + type + " can not be simulated.");
+
+	executors = new ServerExecutors();
+	stats = new ServerStats(null);
+	tour = GameServer.newTournament(format, factory, new Player(), executors, stats, 0);
+	if (tour == null) throw new IllegalArgumentException("Format " + format + " not recognized.");
+	players = new ArrayList<Player>();
+	HashMap<String, AIFactory> ais = new HashMap<String, AIFactory>();  // Brains are only loaded once
+	for (String spec: specs) {
+	    AIFactory f = ais.get(spec);
+	    if (f == null) {
+		f = new AIFactory(spec);
+		ais.put(spec, f);
+	    }
+	    Player p = new Player();
+	    p.setName(spec + "#" + p.getID());
+	    p.setConnection(new SimulatedClient(p, factory, f.newAI()));
+	    players.add(p);
+	    tour.addPlayer(p);
+	}
+    }
+
+    /**
+     * How the tournament chooses the next match (default GREEDY).
+     **/
+    public void setPolicy(Tournament.Policy policy) {
+	tour.setPolicy(policy);
+    }
+
+    /**
+     * Play the whole tournament and print the standings.
+     **/
+    public void run() throws InterruptedException {
+	long start = System.nanoTime();
+	tour.setActive(true);
+	tour.awaitCompletion();
+	double seconds = (System.nanoTime() - start) / 1e9;
+	tour.terminate();
+	executors.shutdown();
+
+	report(seconds);
+    }
+
+    // Print the standings (W = 3 pts, T = 1 pt as in TourManager) kept by the tournament.
+    private void report(double seconds) {
+	int matches = tour.matchesPlayed();
+	System.out.println(String.format("%d players, %d matches in %.2f seconds (%.1f matches/sec)",
+					 players.size(), matches, seconds, matches / seconds));
+	System.out.println("Makespan (policy:rounds left:projected ms:actual ms): " + tour.makespan());
+	System.out.println(String.format("Move latency: p50 %.1fus, p99 %.1fus, p99.9 %.1fus, max %.1fus (%d moves)",
+					 stats.getMoveLatencyP50Micros(), stats.getMoveLatencyP99Micros(),
+					 stats.getMoveLatencyP999Micros(), stats.getMoveLatencyMaxMicros(),
+					 stats.getMoves()));
+	for (Player p: tour.standings())
+	    System.out.println(String.format("%-30s %5d (%d-%d-%d)", p.getName(), p.getScore(),
+					     p.getWins(), p.getLosses(), p.getTies()));
+    }
+
+    /**
+     * The main body just parses the parameters and runs the simulation.
+     **/
+    public static void main(String[] args) {
+	String type = "TTT";
+	String format = "RR";
+	Tournament.Policy policy = Tournament.Policy.GREEDY;
+	List<String> specs = new ArrayList<String>();
+
+	for (String arg: args) {
+	    try {
+		String[] params = arg.split("=",2);
+		switch (params[0]) {
+		case "--help": printUsage(null); break;
+		case "--game": type = params[1]; break;
+		case "--format": format = params[1]; break;
+		case "--policy": policy = Tournament.Policy.valueOf(params[1].toUpperCase()); break;
+		case "--player":
+		    // SPEC or COUNT*SPEC
+		    String[] p = params[1].split("\\*", 2);
+		    int count = (p.length == 2) ? Integer.parseInt(p[0]) : 1;
+		    for (int i = 0; i < count; i++) specs.add(p[p.length - 1]);
+		    break;
+		default:
+		    printUsage("Unrecognized parameter: " + arg);
+		}
+	    } catch (Exception e) {
+		printUsage("Error processing parameter: " + arg);
+	    }
+	}
+	if (specs.size() < 2) printUsage("At least two players are needed.");
+
+	try {
+	    TournamentSimulator sim = new TournamentSimulator(type, format, specs);
+	    sim.setPolicy(policy);
+	    sim.run();
+	} catch (Exception e) {
+	    System.err.println("ABORTING: " + e.getMessage());
+	    System.exit(1);
+	}
+    }
+
+    /**
+     * Print Usage message and exit
+     **/
+    public static void printUsage(String message) {
+	System.err.println("Usage: java cad.ai.server.TournamentSimulator [params]");
+	System.err.println("       Where params are:");
+	System.err.println("         --help              Print this help message.");
+	System.err.println("         --game=TYPE         The game to play (NIM or TTT) [default=TTT].");
+	System.err.println("         --format=FORMAT     RR, SWISS[/ROUNDS] or KNOCKOUT [default=RR].");
+	System.err.println("         --policy=POLICY     Match scheduling: GREEDY, MOST_REMAINING or ROUNDS [default=GREEDY].");
+	System.err.println("         --player=[N*]SPEC   Add (N) player(s) with the given AI.  SPEC is one of");
+	AIFactory.printSpecs("                               ");
+	if (message != null) System.err.println("       " + message);
+	System.exit(1);
+    }
+}